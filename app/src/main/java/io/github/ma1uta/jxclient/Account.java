@@ -62,4 +62,24 @@ public interface Account {
      * @param action action to update UI.
      */
     void updateUI(Runnable action);
+
+    /**
+     * Add the keyed action to queue to run in the FX thread to update UI. The queued action with the same owner and property
+     * is replaced, only the latest one is run.
+     *
+     * @param owner    the updated object (the room, the view).
+     * @param property the updated property.
+     * @param action   action to update UI.
+     */
+    void updateUI(Object owner, String property, Runnable action);
+
+    /**
+     * Add the action to queue to run in the FX thread to update UI. If the queue stays full the action is dropped and the
+     * fallback is run instead, the fallback should bring the owner to the consistent state (for example, offer to refresh it).
+     *
+     * @param owner    the updated object (the room, the view).
+     * @param action   action to update UI.
+     * @param fallback action to run instead of the dropped ones.
+     */
+    void updateUI(Object owner, Runnable action, Runnable fallback);
 }
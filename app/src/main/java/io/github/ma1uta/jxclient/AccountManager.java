@@ -131,16 +131,9 @@ public class AccountManager {
      * @param preferences account preferences.
      */
     public void sync(Account account, Map<String, String> preferences) {
-        var root = Preferences.userRoot();
-        String id = null;
-        for (Map.Entry<String, Account> entry : accountMap.entrySet()) {
-            if (entry.getValue().equals(account)) {
-                id = entry.getKey();
-                break;
-            }
-        }
+        var id = accountId(account);
         if (id != null) {
-            Preferences node = root.node("jxclient/accounts/" + id);
+            Preferences node = Preferences.userRoot().node("jxclient/accounts/" + id);
             preferences.forEach(node::put);
             try {
                 node.sync();
@@ -149,4 +142,33 @@ public class AccountManager {
             }
         }
     }
+
+    /**
+     * Update a single account preference. Unlike {@link #sync(Account, Map)} the backing store isn't flushed immediately,
+     * so it is cheap enough to be called on every sync response.
+     *
+     * @param account account to update.
+     * @param key     preference key.
+     * @param value   new value or {@code null} to remove the preference.
+     */
+    public void update(Account account, String key, String value) {
+        var id = accountId(account);
+        if (id != null) {
+            Preferences node = Preferences.userRoot().node("jxclient/accounts/" + id);
+            if (value == null) {
+                node.remove(key);
+            } else {
+                node.put(key, value);
+            }
+        }
+    }
+
+    private String accountId(Account account) {
+        for (Map.Entry<String, Account> entry : accountMap.entrySet()) {
+            if (entry.getValue().equals(account)) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import io.github.ma1uta.matrix.Page;
+import io.github.ma1uta.matrix.client.MatrixClient;
+import io.github.ma1uta.matrix.event.Event;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Loader of the skipped room history. The requests are sent through the room messages API and at most
+ * {@code concurrency} requests of the account are in flight at once, the rest wait in the queue. The local tokens of the
+ * restored rooms are resolved by the {@link LocalStore} first, and the server is asked only when the stored events are
+ * exhausted.
+ */
+public class Backfiller {
+
+    /**
+     * Default count of the simultaneous requests.
+     */
+    public static final int DEFAULT_CONCURRENCY = 2;
+
+    /**
+     * Default count of the events loaded by one request.
+     */
+    public static final int DEFAULT_LIMIT = 50;
+
+    private static final String BACKWARD = "b";
+
+    private final Supplier<MatrixClient> client;
+    private final Supplier<LocalStore> store;
+    private final int concurrency;
+    private final int limit;
+    private final Queue<Task> pending = new ArrayDeque<>();
+    private int active;
+
+    /**
+     * Create a new backfiller.
+     *
+     * @param client      the client provider.
+     * @param store       the local store provider.
+     * @param concurrency the count of the simultaneous requests.
+     * @param limit       the count of the events loaded by one request.
+     */
+    public Backfiller(Supplier<MatrixClient> client, Supplier<LocalStore> store, int concurrency, int limit) {
+        this.client = client;
+        this.store = store;
+        this.concurrency = concurrency;
+        this.limit = limit;
+    }
+
+    /**
+     * Load the room events preceding the token.
+     *
+     * @param roomId the room id.
+     * @param from   the token to start from.
+     * @return the events in the reverse-chronological order.
+     */
+    public CompletableFuture<Page<Event>> messages(String roomId, String from) {
+        var task = new Task(roomId, from);
+        synchronized (this) {
+            pending.add(task);
+        }
+        drain();
+        return task.result;
+    }
+
+    private void drain() {
+        for (var task = nextTask(); task != null; task = nextTask()) {
+            var current = task;
+            try {
+                request(current.roomId, current.from).whenComplete((page, throwable) -> {
+                    release();
+                    if (throwable != null) {
+                        current.result.completeExceptionally(throwable);
+                    } else {
+                        current.result.complete(page);
+                    }
+                    drain();
+                });
+            } catch (RuntimeException e) {
+                release();
+                current.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private CompletableFuture<Page<Event>> request(String roomId, String from) {
+        if (!LocalStore.isLocal(from)) {
+            return client.get().event().messages(roomId, from, null, BACKWARD, limit, null);
+        }
+        var localStore = store.get();
+        if (localStore == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("The local store is closed."));
+        }
+        return CompletableFuture.supplyAsync(() -> localStore.page(roomId, from, limit)).thenCompose(page -> {
+            if (page.getChunk().isEmpty() && page.getEnd() != null && !LocalStore.isLocal(page.getEnd())) {
+                return client.get().event().messages(roomId, page.getEnd(), null, BACKWARD, limit, null);
+            }
+            return CompletableFuture.completedFuture(page);
+        });
+    }
+
+    private synchronized Task nextTask() {
+        if (active >= concurrency || pending.isEmpty()) {
+            return null;
+        }
+        active++;
+        return pending.poll();
+    }
+
+    private synchronized void release() {
+        active--;
+    }
+
+    private static final class Task {
+
+        private final String roomId;
+        private final String from;
+        private final CompletableFuture<Page<Event>> result = new CompletableFuture<>();
+
+        private Task(String roomId, String from) {
+            this.roomId = roomId;
+            this.from = from;
+        }
+    }
+}
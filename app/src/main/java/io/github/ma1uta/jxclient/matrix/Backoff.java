@@ -0,0 +1,100 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter. Every failed attempt doubles the delay up to the maximum, the actual delay is a random
+ * value between the half and the whole of it, so the clients which failed at the same moment don't retry in lockstep.
+ */
+public class Backoff {
+
+    /**
+     * Default delay after the first failure in milliseconds.
+     */
+    public static final long DEFAULT_INITIAL_DELAY = 1_000L;
+
+    /**
+     * Default maximum delay in milliseconds.
+     */
+    public static final long DEFAULT_MAX_DELAY = 60_000L;
+
+    private static final int MAX_SHIFT = 30;
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private int attempts;
+
+    public Backoff() {
+        this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    public Backoff(long initialDelay, long maxDelay) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Register the failed attempt and provide the delay before the next one.
+     *
+     * @return the delay in milliseconds.
+     */
+    public synchronized long next() {
+        var ceiling = Math.min(maxDelay, initialDelay << Math.min(attempts, MAX_SHIFT));
+        attempts++;
+        var half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+    }
+
+    /**
+     * Reset the backoff after the successful attempt.
+     */
+    public synchronized void reset() {
+        attempts = 0;
+    }
+
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Check that the failure was caused by the lost connection rather than the error response. Only the failures to connect,
+     * to resolve the host and the closed channels count, the other I/O errors (e.g. the malformed response body or the open
+     * circuit) don't mean that the homeserver cannot be reached.
+     *
+     * @param throwable the failure.
+     * @return {@code true} if the homeserver cannot be reached.
+     */
+    public static boolean isConnectivityLoss(Throwable throwable) {
+        var current = throwable;
+        while (current != null) {
+            if (current instanceof ConnectException || current instanceof NoRouteToHostException
+                || current instanceof HttpConnectTimeoutException || current instanceof UnknownHostException
+                || current instanceof ClosedChannelException) {
+                return true;
+            }
+            current = current.getCause();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import static java.lang.System.Logger.Level.INFO;
+import static java.lang.System.Logger.Level.WARNING;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker of the homeserver. After several consecutive transient failures the circuit opens and the requests fail
+ * at once instead of piling up while the homeserver is down. When the open period ends the next request is sent as the
+ * probe (the circuit is half-open), its success closes the circuit and its failure opens it again. The probe which doesn't
+ * complete within the probe timeout is considered failed too, so the circuit never stays half-open. The probe timeout is the
+ * timeout of the probe request but not shorter than the open period, so the long-poll sync (which holds the connection for
+ * the sync timeout) isn't considered failed while the homeserver waits for the events.
+ */
+public final class CircuitBreaker {
+
+    private static final System.Logger LOGGER = System.getLogger("CIRCUIT_BREAKER");
+
+    /**
+     * Default count of the consecutive failures which opens the circuit.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * Default open period in milliseconds.
+     */
+    public static final long DEFAULT_OPEN_PERIOD = 15_000L;
+
+    /**
+     * Default probe timeout in milliseconds of the request without the timeout. It is longer than the default long-poll
+     * timeout of the sync ({@link SyncDriver#DEFAULT_TIMEOUT}).
+     */
+    public static final long DEFAULT_PROBE_TIMEOUT = 60_000L;
+
+    private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    /**
+     * Circuit states.
+     */
+    public enum State {
+        /**
+         * Requests are sent.
+         */
+        CLOSED,
+
+        /**
+         * Requests fail without sending.
+         */
+        OPEN,
+
+        /**
+         * The probe request is in flight, the other requests fail without sending.
+         */
+        HALF_OPEN
+    }
+
+    private final String homeserver;
+    private final int failureThreshold;
+    private final long openPeriod;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private long probeSentAt;
+    private long probeTimeout;
+
+    private CircuitBreaker(String homeserver, int failureThreshold, long openPeriod) {
+        this.homeserver = homeserver;
+        this.failureThreshold = failureThreshold;
+        this.openPeriod = openPeriod;
+    }
+
+    /**
+     * Provides the circuit breaker of the homeserver.
+     *
+     * @param homeserverUrl the homeserver url.
+     * @return the shared circuit breaker.
+     */
+    public static CircuitBreaker get(String homeserverUrl) {
+        return BREAKERS.computeIfAbsent(homeserverUrl.trim().toLowerCase(Locale.ROOT),
+            key -> new CircuitBreaker(key, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_PERIOD));
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Check that the request can be sent.
+     *
+     * @return {@code true} if the request can be sent.
+     */
+    public boolean allow() {
+        return allow(DEFAULT_PROBE_TIMEOUT);
+    }
+
+    /**
+     * Check that the request can be sent.
+     *
+     * @param timeout the timeout of the request in milliseconds, it is used as the probe timeout if the request is the probe.
+     * @return {@code true} if the request can be sent.
+     */
+    public synchronized boolean allow(long timeout) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - openedAt) < openPeriod) {
+                    return false;
+                }
+                LOGGER.log(INFO, "Circuit of {0} is half-open, probing.", homeserver);
+                state = State.HALF_OPEN;
+                probeSentAt = System.nanoTime();
+                probeTimeout = Math.max(openPeriod, timeout);
+                return true;
+            default:
+                if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - probeSentAt) >= probeTimeout) {
+                    LOGGER.log(WARNING, "Probe of {0} timed out, circuit is open.", homeserver);
+                    open();
+                }
+                return false;
+        }
+    }
+
+    /**
+     * Register the response of the homeserver. The response to the out-of-band reachability probe closes the circuit too.
+     */
+    public synchronized void success() {
+        if (state != State.CLOSED) {
+            LOGGER.log(INFO, "Circuit of {0} is closed.", homeserver);
+        }
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * Register the transient failure.
+     */
+    public synchronized void failure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            LOGGER.log(WARNING, "Circuit of {0} is open after {1} failures.", homeserver, failures);
+            open();
+        }
+    }
+
+    /**
+     * Register the request failed with the non-transient error. It doesn't count towards the threshold, but the failed probe
+     * opens the circuit again.
+     */
+    public synchronized void abort() {
+        if (state == State.HALF_OPEN) {
+            LOGGER.log(WARNING, "Probe of {0} failed, circuit is open.", homeserver);
+            open();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+    }
+
+    /**
+     * The request isn't sent because the circuit is open.
+     */
+    public static class OpenException extends IOException {
+
+        /**
+         * Create a new exception.
+         *
+         * @param homeserver the homeserver.
+         */
+        public OpenException(String homeserver) {
+            super(String.format("The homeserver %s is unavailable.", homeserver));
+        }
+    }
+}
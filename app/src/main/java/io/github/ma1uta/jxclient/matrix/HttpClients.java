@@ -0,0 +1,115 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.prefs.Preferences;
+
+/**
+ * Process-wide registry of the http clients. All accounts and logins on the same homeserver share one client, so they reuse
+ * its connections and TLS sessions, and the HTTP/2 connection multiplexes their requests instead of opening a connection
+ * per account. All clients run on the one shared executor, which also runs the blocking IO of the downloaded content (for
+ * example, the media cache lookups).
+ */
+public final class HttpClients {
+
+    /**
+     * Default connect timeout.
+     */
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+    /**
+     * Default request timeout: the time to wait for the response headers. The clients have no timeout of their own, every
+     * request sets it, the long-poll sync waits for its server-side timeout plus this one.
+     */
+    public static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        var thread = new Thread(runnable, "http-client-" + THREAD_COUNTER.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Map<String, HttpClient> CLIENTS = new ConcurrentHashMap<>();
+
+    private static final String COMPRESSION_NODE = "jxclient/compression";
+
+    private HttpClients() {
+        // singleton.
+    }
+
+    /**
+     * Provides the http client of the homeserver.
+     *
+     * @param homeserverUrl the homeserver url.
+     * @return the shared http client.
+     */
+    public static HttpClient get(String homeserverUrl) {
+        return CLIENTS.computeIfAbsent(key(homeserverUrl), key -> HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(DEFAULT_CONNECT_TIMEOUT)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .executor(EXECUTOR)
+            .build());
+    }
+
+    /**
+     * Provides the shared executor of the http clients. It is the unbounded pool of the daemon threads, so the blocking file
+     * IO submitted to it doesn't take the threads of the account executor (the sync loop).
+     *
+     * @return the shared executor.
+     */
+    public static Executor executor() {
+        return EXECUTOR;
+    }
+
+    /**
+     * Check that the compressed responses are requested from the homeserver. The compression is enabled by default and can
+     * be disabled per homeserver with the {@code jxclient/compression} preference node (the homeserver url is the key), for
+     * example for the homeservers behind the proxies which break the compressed responses.
+     *
+     * @param homeserverUrl the homeserver url.
+     * @return {@code true} if the compression is enabled.
+     */
+    public static boolean isCompressionEnabled(String homeserverUrl) {
+        return Preferences.userRoot().node(COMPRESSION_NODE).getBoolean(key(homeserverUrl), true);
+    }
+
+    /**
+     * Enable or disable the compressed responses of the homeserver. The change applies to the new request factories.
+     *
+     * @param homeserverUrl the homeserver url.
+     * @param enabled       {@code true} to request the compressed responses.
+     */
+    public static void setCompressionEnabled(String homeserverUrl, boolean enabled) {
+        Preferences.userRoot().node(COMPRESSION_NODE).putBoolean(key(homeserverUrl), enabled);
+    }
+
+    private static String key(String homeserverUrl) {
+        return homeserverUrl.trim().toLowerCase(Locale.ROOT);
+    }
+}
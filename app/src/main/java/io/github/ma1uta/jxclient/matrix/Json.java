@@ -0,0 +1,121 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import io.github.ma1uta.matrix.event.Event;
+import io.github.ma1uta.matrix.event.content.RoomEncryptedContent;
+import io.github.ma1uta.matrix.event.content.RoomMessageContent;
+import io.github.ma1uta.matrix.support.jackson.EventDeserializer;
+import io.github.ma1uta.matrix.support.jackson.RoomEncryptedContentDeserializer;
+import io.github.ma1uta.matrix.support.jackson.RoomMessageContentDeserializer;
+
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared json serialization. The mapper is configured once per process and the readers and the writers are built once per
+ * type, so the type resolution and the serializer lookup aren't repeated for every response. The readers and the writers
+ * are immutable and thread-safe.
+ */
+public final class Json {
+
+    private static final ObjectMapper MAPPER = createMapper();
+
+    private static final ObjectWriter PRETTY_WRITER = MAPPER.writer().with(SerializationFeature.INDENT_OUTPUT);
+
+    private static final Map<Type, ObjectReader> READERS = new ConcurrentHashMap<>();
+
+    private static final Map<Class<?>, ObjectWriter> WRITERS = new ConcurrentHashMap<>();
+
+    private Json() {
+        // singleton.
+    }
+
+    private static ObjectMapper createMapper() {
+        var mapper = new ObjectMapper();
+
+        var eventModule = new SimpleModule();
+        eventModule.addDeserializer(Event.class, new EventDeserializer());
+        eventModule.addDeserializer(RoomEncryptedContent.class, new RoomEncryptedContentDeserializer());
+        eventModule.addDeserializer(RoomMessageContent.class, new RoomMessageContentDeserializer());
+
+        mapper.registerModule(eventModule);
+        mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        mapper.setSerializationInclusion(JsonInclude.Include.NON_EMPTY);
+        return mapper;
+    }
+
+    /**
+     * Provides the shared mapper. The mapper must not be reconfigured.
+     *
+     * @return the shared mapper.
+     */
+    public static ObjectMapper mapper() {
+        return MAPPER;
+    }
+
+    /**
+     * Provides the reader of the type.
+     *
+     * @param type the class or the generic type of the value.
+     * @return the cached reader.
+     */
+    public static ObjectReader reader(Type type) {
+        return READERS.computeIfAbsent(type, key -> MAPPER.readerFor(MAPPER.getTypeFactory().constructType(key)));
+    }
+
+    /**
+     * Provides the writer of the class.
+     *
+     * @param valueClass the class of the value.
+     * @return the cached writer.
+     */
+    public static ObjectWriter writer(Class<?> valueClass) {
+        return WRITERS.computeIfAbsent(valueClass, MAPPER::writerFor);
+    }
+
+    /**
+     * Serialize the value to the bytes.
+     *
+     * @param value the value.
+     * @return the json bytes.
+     * @throws JsonProcessingException when the value cannot be serialized.
+     */
+    public static byte[] bytes(Object value) throws JsonProcessingException {
+        return value == null ? MAPPER.writeValueAsBytes(null) : writer(value.getClass()).writeValueAsBytes(value);
+    }
+
+    /**
+     * Serialize the value to the indented json.
+     *
+     * @param value the value.
+     * @return the indented json.
+     * @throws JsonProcessingException when the value cannot be serialized.
+     */
+    public static String pretty(Object value) throws JsonProcessingException {
+        return PRETTY_WRITER.writeValueAsString(value);
+    }
+}
@@ -0,0 +1,590 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import static java.lang.System.Logger.Level.ERROR;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.ma1uta.matrix.Page;
+import io.github.ma1uta.matrix.client.model.sync.AccountData;
+import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
+import io.github.ma1uta.matrix.client.model.sync.State;
+import io.github.ma1uta.matrix.client.model.sync.Timeline;
+import io.github.ma1uta.matrix.event.Event;
+import io.github.ma1uta.matrix.event.RoomEvent;
+import io.github.ma1uta.matrix.event.StateEvent;
+import org.lmdbjava.CursorIterator;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.DbiFlags;
+import org.lmdbjava.Env;
+import org.lmdbjava.EnvFlags;
+import org.lmdbjava.KeyRange;
+import org.lmdbjava.Txn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Local store of the account data based on LMDB. The store has the separate databases for the room timelines (keyed by
+ * the room id and the stream order), the stored event ids (keyed by the room id and the event id), the current room state
+ * (keyed by the room id, the event type and the state key), the account data (keyed by the room id and the event type, the
+ * global account data has the empty room id) and the sync tokens. The events are kept as json.
+ *
+ * <p>The sync response is written by the {@link Batch} in the single write transaction, so either the whole response with
+ * its {@code next_batch} token is stored or nothing.</p>
+ */
+public class LocalStore implements AutoCloseable {
+
+    private static final System.Logger LOGGER = System.getLogger("LOCAL_STORE");
+
+    /**
+     * Default maximum size of the store in bytes.
+     */
+    public static final long DEFAULT_MAP_SIZE = 1L << 30;
+
+    /**
+     * The name of the token of the last stored sync response.
+     */
+    public static final String NEXT_BATCH = "next_batch";
+
+    /**
+     * Default count of the restored events per room.
+     */
+    public static final int DEFAULT_SNAPSHOT_LIMIT = 20;
+
+    private static final String PREV_BATCH = "prev_batch";
+
+    private static final String LOCAL_TOKEN = "local:";
+
+    private static final byte SEPARATOR = 0;
+    private static final int ORDER_SIZE = Long.BYTES;
+
+    private final ObjectMapper mapper;
+    private final Env<ByteBuffer> env;
+    private final Dbi<ByteBuffer> timeline;
+    private final Dbi<ByteBuffer> state;
+    private final Dbi<ByteBuffer> accountData;
+    private final Dbi<ByteBuffer> tokens;
+    private final Dbi<ByteBuffer> rooms;
+    private final Dbi<ByteBuffer> eventIds;
+
+    /**
+     * Open the store.
+     *
+     * @param location the store directory, it is created if missing.
+     * @param mapper   the mapper of the events.
+     * @param mapSize  the maximum size of the store in bytes.
+     * @throws IOException when the directory cannot be created.
+     */
+    public LocalStore(Path location, ObjectMapper mapper, long mapSize) throws IOException {
+        this.mapper = mapper;
+        Files.createDirectories(location);
+        this.env = Env.create().setMapSize(mapSize).setMaxDbs(6).open(location.toFile(), EnvFlags.MDB_NOTLS);
+        this.timeline = env.openDbi("timeline", DbiFlags.MDB_CREATE);
+        this.state = env.openDbi("state", DbiFlags.MDB_CREATE);
+        this.accountData = env.openDbi("account_data", DbiFlags.MDB_CREATE);
+        this.tokens = env.openDbi("tokens", DbiFlags.MDB_CREATE);
+        this.rooms = env.openDbi("rooms", DbiFlags.MDB_CREATE);
+        this.eventIds = env.openDbi("event_ids", DbiFlags.MDB_CREATE);
+    }
+
+    /**
+     * Provides the default location of the account store.
+     *
+     * @param userId   the user id.
+     * @param deviceId the device id.
+     * @return the store directory.
+     */
+    public static Path location(String userId, String deviceId) {
+        var name = (userId + "_" + deviceId).replaceAll("[^A-Za-z0-9._-]", "_");
+        return Paths.get(System.getProperty("user.home"), ".jxclient", "store", name);
+    }
+
+    /**
+     * Start writing the sync response. The batch should be used and committed in the same thread.
+     *
+     * @return the new batch.
+     */
+    public Batch batch() {
+        return new Batch(env.txnWrite());
+    }
+
+    /**
+     * Provides the stored token.
+     *
+     * @param name the token name.
+     * @return the token or {@code null} if it is missing.
+     */
+    public String getToken(String name) {
+        try (Txn<ByteBuffer> txn = env.txnRead()) {
+            var value = tokens.get(txn, key(name));
+            return value != null ? new String(bytes(value), StandardCharsets.UTF_8) : null;
+        }
+    }
+
+    /**
+     * Provides the last events of the room timeline.
+     *
+     * @param roomId the room id.
+     * @param limit  the maximum count of the events.
+     * @return the events from the oldest to the newest.
+     */
+    public List<Event> timeline(String roomId, int limit) {
+        var events = new ArrayList<Event>();
+        backward(roomId, Long.MAX_VALUE, limit, (order, event) -> events.add(event));
+        Collections.reverse(events);
+        return events;
+    }
+
+    /**
+     * Provides the stored events preceding the local token in the form of the room messages response, so the gap of the
+     * restored room is filled from the store before the older history is requested from the server. When the stored events
+     * are exhausted the end of the page is the server token of the oldest stored event.
+     *
+     * @param roomId the room id.
+     * @param from   the local token.
+     * @param limit  the maximum count of the events.
+     * @return the events in the reverse-chronological order.
+     */
+    public Page<Event> page(String roomId, String from, int limit) {
+        var events = new ArrayList<Event>();
+        var oldest = new long[] {Long.MIN_VALUE};
+        var count = backward(roomId, localOrder(from) - 1, limit + 1, (order, event) -> {
+            if (events.size() < limit) {
+                events.add(event);
+                oldest[0] = order;
+            }
+        });
+        var page = new Page<Event>();
+        page.setChunk(events);
+        page.setStart(from);
+        page.setEnd(count > limit ? localToken(oldest[0]) : getToken(PREV_BATCH + (char) SEPARATOR + roomId));
+        return page;
+    }
+
+    /**
+     * Checks whether the pagination token is issued by the store.
+     *
+     * @param token the pagination token.
+     * @return {@code true} if the events preceding the token should be read from the store.
+     */
+    public static boolean isLocal(String token) {
+        return token != null && token.startsWith(LOCAL_TOKEN);
+    }
+
+    /**
+     * Provides the current room state.
+     *
+     * @param roomId the room id.
+     * @return the state events.
+     */
+    public List<Event> state(String roomId) {
+        var events = new ArrayList<Event>();
+        var prefix = key(roomId, "");
+        try (Txn<ByteBuffer> txn = env.txnRead();
+             CursorIterator<ByteBuffer> iterator = state.iterate(txn, KeyRange.atLeast(prefix))) {
+            while (iterator.hasNext()) {
+                var keyVal = iterator.next();
+                if (!startsWith(keyVal.key(), prefix)) {
+                    break;
+                }
+                var event = event(keyVal.val());
+                if (event != null) {
+                    events.add(event);
+                }
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Provides the ids of the stored rooms.
+     *
+     * @return the room ids.
+     */
+    public List<String> rooms() {
+        var roomIds = new ArrayList<String>();
+        try (Txn<ByteBuffer> txn = env.txnRead();
+             CursorIterator<ByteBuffer> iterator = rooms.iterate(txn, KeyRange.all())) {
+            while (iterator.hasNext()) {
+                roomIds.add(new String(bytes(iterator.next().key()), StandardCharsets.UTF_8));
+            }
+        }
+        return roomIds;
+    }
+
+    /**
+     * Provides the snapshot of the stored room in the form of the sync data, so it can be rendered as the usual sync response.
+     * If the stored timeline is longer than the limit, the timeline is marked as limited with the local token of the oldest
+     * returned event, so the gap is filled with the older stored events first (see {@link #page(String, String, int)}).
+     * Otherwise the timeline is marked as limited with the stored {@code prev_batch} token.
+     *
+     * @param roomId the room id.
+     * @param limit  the maximum count of the timeline events.
+     * @return the room snapshot.
+     */
+    public JoinedRoom snapshot(String roomId, int limit) {
+        var events = new ArrayList<Event>();
+        var oldest = new long[] {Long.MIN_VALUE};
+        var count = backward(roomId, Long.MAX_VALUE, limit + 1, (order, event) -> {
+            if (events.size() < limit) {
+                events.add(event);
+                oldest[0] = order;
+            }
+        });
+        Collections.reverse(events);
+        var prevBatch = count > limit ? localToken(oldest[0]) : getToken(PREV_BATCH + (char) SEPARATOR + roomId);
+        var roomTimeline = new Timeline();
+        roomTimeline.setEvents(events);
+        roomTimeline.setLimited(prevBatch != null);
+        roomTimeline.setPrevBatch(prevBatch);
+        var roomState = new State();
+        roomState.setEvents(state(roomId));
+        var joinedRoom = new JoinedRoom();
+        joinedRoom.setState(roomState);
+        joinedRoom.setTimeline(roomTimeline);
+        return joinedRoom;
+    }
+
+    /**
+     * Provides the account data event.
+     *
+     * @param roomId the room id or {@code null} for the global account data.
+     * @param type   the event type.
+     * @return the event or {@code null} if it is missing.
+     */
+    public Event accountData(String roomId, String type) {
+        try (Txn<ByteBuffer> txn = env.txnRead()) {
+            var value = accountData.get(txn, key(roomId != null ? roomId : "", type));
+            return value != null ? event(value) : null;
+        }
+    }
+
+    @Override
+    public void close() {
+        env.close();
+    }
+
+    /**
+     * Read the room timeline backward starting from the order.
+     *
+     * @return the count of the read entries, including the unreadable ones.
+     */
+    private int backward(String roomId, long from, int limit, OrderedEvent consumer) {
+        var count = 0;
+        try (Txn<ByteBuffer> txn = env.txnRead();
+             CursorIterator<ByteBuffer> iterator = timeline.iterate(txn, KeyRange.closedBackward(orderKey(roomId, from),
+                 orderKey(roomId, Long.MIN_VALUE)))) {
+            while (count < limit && iterator.hasNext()) {
+                var keyVal = iterator.next();
+                count++;
+                var event = event(keyVal.val());
+                if (event != null) {
+                    consumer.accept(order(keyVal.key()), event);
+                }
+            }
+        }
+        return count;
+    }
+
+    private static String localToken(long order) {
+        return LOCAL_TOKEN + order;
+    }
+
+    private static long localOrder(String token) {
+        try {
+            return Long.parseLong(token.substring(LOCAL_TOKEN.length()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Wrong local token: " + token, e);
+        }
+    }
+
+    private Event event(ByteBuffer value) {
+        try {
+            return mapper.readValue(bytes(value), Event.class);
+        } catch (IOException e) {
+            LOGGER.log(ERROR, "Failed to read the stored event.", e);
+            return null;
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer value) {
+        var bytes = new byte[value.remaining()];
+        value.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static ByteBuffer buffer(byte[] bytes) {
+        return ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+    }
+
+    private static ByteBuffer key(String... parts) {
+        var joined = String.join(String.valueOf((char) SEPARATOR), parts);
+        return buffer(joined.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer orderKey(String roomId, long order) {
+        var room = roomId.getBytes(StandardCharsets.UTF_8);
+        var key = ByteBuffer.allocateDirect(room.length + 1 + ORDER_SIZE);
+        // flip the sign bit, so the unsigned comparison of the keys keeps the order of the negative values.
+        return key.put(room).put(SEPARATOR).putLong(order ^ Long.MIN_VALUE).flip();
+    }
+
+    private static long order(ByteBuffer key) {
+        return key.getLong(key.limit() - ORDER_SIZE) ^ Long.MIN_VALUE;
+    }
+
+    private static boolean startsWith(ByteBuffer key, ByteBuffer prefix) {
+        if (key.remaining() < prefix.remaining()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.remaining(); i++) {
+            if (key.get(key.position() + i) != prefix.get(prefix.position() + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write transaction of the single sync response. The failed write aborts the transaction and the rest of the batch is
+     * ignored, so the stored token never gets ahead of the stored data.
+     */
+    public final class Batch implements AutoCloseable {
+
+        private final Txn<ByteBuffer> txn;
+        private boolean failed;
+        private boolean full;
+
+        private Batch(Txn<ByteBuffer> txn) {
+            this.txn = txn;
+        }
+
+        /**
+         * Store the joined room. The timeline events are appended to the room timeline, the already stored events are skipped
+         * (e.g. when the response is replayed with the same {@code since} token). The limited timeline replaces the stored one,
+         * so the stored timeline never has gaps, and its {@code prev_batch} token is kept to load the older events.
+         *
+         * @param roomId     the room id.
+         * @param joinedRoom the sync data of the room.
+         */
+        public void room(String roomId, JoinedRoom joinedRoom) {
+            write(() -> {
+                if (joinedRoom.getState() != null && joinedRoom.getState().getEvents() != null) {
+                    for (Event event : joinedRoom.getState().getEvents()) {
+                        putState(roomId, event);
+                    }
+                }
+                rooms.put(txn, key(roomId), buffer(new byte[] {SEPARATOR}));
+                var roomTimeline = joinedRoom.getTimeline();
+                if (roomTimeline != null && roomTimeline.getEvents() != null && !roomTimeline.getEvents().isEmpty()) {
+                    // the orders keep growing after the limited sync, so the issued local tokens never point to the new events.
+                    var order = lastOrder(roomId);
+                    var limited = Boolean.TRUE.equals(roomTimeline.getLimited());
+                    if (limited) {
+                        clearTimeline(roomId);
+                    }
+                    if (limited || order == 0L) {
+                        token(PREV_BATCH + (char) SEPARATOR + roomId, roomTimeline.getPrevBatch());
+                    }
+                    for (Event event : roomTimeline.getEvents()) {
+                        if (isStored(roomId, event)) {
+                            continue;
+                        }
+                        timeline.put(txn, orderKey(roomId, ++order), buffer(mapper.writeValueAsBytes(event)));
+                        putState(roomId, event);
+                    }
+                }
+                putAccountData(roomId, joinedRoom.getAccountData());
+            });
+        }
+
+        /**
+         * Remove the left room with its timeline, state, account data and the {@code prev_batch} token.
+         *
+         * @param roomId the room id.
+         */
+        public void leave(String roomId) {
+            write(() -> {
+                rooms.delete(txn, key(roomId));
+                clearTimeline(roomId);
+                deletePrefix(state, key(roomId, ""));
+                deletePrefix(accountData, key(roomId, ""));
+                tokens.delete(txn, key(PREV_BATCH, roomId));
+            });
+        }
+
+        /**
+         * Store the global account data.
+         *
+         * @param data the account data.
+         */
+        public void accountData(AccountData data) {
+            write(() -> putAccountData("", data));
+        }
+
+        /**
+         * Store the token.
+         *
+         * @param name  the token name.
+         * @param value the token value.
+         */
+        public void token(String name, String value) {
+            write(() -> {
+                if (value == null) {
+                    tokens.delete(txn, key(name));
+                } else {
+                    tokens.put(txn, key(name), buffer(value.getBytes(StandardCharsets.UTF_8)));
+                }
+            });
+        }
+
+        /**
+         * Commit the batch. The failed batch is aborted.
+         */
+        public void commit() {
+            if (failed) {
+                return;
+            }
+            try {
+                txn.commit();
+            } catch (RuntimeException e) {
+                LOGGER.log(ERROR, "Failed to commit the sync response.", e);
+                failed = true;
+                full = e instanceof Env.MapFullException;
+            }
+        }
+
+        /**
+         * Checks whether the batch failed because the store reached its maximum size. The later batches would fail too.
+         *
+         * @return {@code true} if the store is full.
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        /**
+         * Release the transaction. The uncommitted batch is aborted.
+         */
+        @Override
+        public void close() {
+            txn.close();
+        }
+
+        private void write(Write action) {
+            if (failed) {
+                return;
+            }
+            try {
+                action.run();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(ERROR, "Failed to store the sync response.", e);
+                failed = true;
+                full = e instanceof Env.MapFullException;
+                txn.abort();
+            }
+        }
+
+        private void putState(String roomId, Event event) throws IOException {
+            if (event instanceof StateEvent && ((StateEvent<?>) event).getStateKey() != null) {
+                state.put(txn, key(roomId, event.getType(), ((StateEvent<?>) event).getStateKey()),
+                    buffer(mapper.writeValueAsBytes(event)));
+            }
+        }
+
+        private void putAccountData(String roomId, AccountData data) throws IOException {
+            if (data != null && data.getEvents() != null) {
+                for (Event event : data.getEvents()) {
+                    accountData.put(txn, key(roomId, event.getType()), buffer(mapper.writeValueAsBytes(event)));
+                }
+            }
+        }
+
+        private long lastOrder(String roomId) {
+            try (CursorIterator<ByteBuffer> iterator = timeline.iterate(txn,
+                KeyRange.closedBackward(orderKey(roomId, Long.MAX_VALUE), orderKey(roomId, Long.MIN_VALUE)))) {
+                return iterator.hasNext() ? order(iterator.next().key()) : 0L;
+            }
+        }
+
+        private void deletePrefix(Dbi<ByteBuffer> dbi, ByteBuffer prefix) {
+            var keys = new ArrayList<byte[]>();
+            try (CursorIterator<ByteBuffer> iterator = dbi.iterate(txn, KeyRange.atLeast(prefix))) {
+                while (iterator.hasNext()) {
+                    var key = iterator.next().key();
+                    if (!startsWith(key, prefix)) {
+                        break;
+                    }
+                    keys.add(bytes(key));
+                }
+            }
+            for (byte[] key : keys) {
+                dbi.delete(txn, buffer(key));
+            }
+        }
+
+        /**
+         * Check that the event is already stored and register its id otherwise.
+         */
+        private boolean isStored(String roomId, Event event) {
+            var eventId = event instanceof RoomEvent ? ((RoomEvent<?>) event).getEventId() : null;
+            if (eventId == null) {
+                return false;
+            }
+            var key = key(roomId, eventId);
+            if (eventIds.get(txn, key) != null) {
+                return true;
+            }
+            eventIds.put(txn, key, buffer(new byte[] {SEPARATOR}));
+            return false;
+        }
+
+        private void clearTimeline(String roomId) {
+            deletePrefix(eventIds, key(roomId, ""));
+            var keys = new ArrayList<Long>();
+            try (CursorIterator<ByteBuffer> iterator = timeline.iterate(txn,
+                KeyRange.closed(orderKey(roomId, Long.MIN_VALUE), orderKey(roomId, Long.MAX_VALUE)))) {
+                while (iterator.hasNext()) {
+                    keys.add(order(iterator.next().key()));
+                }
+            }
+            for (Long order : keys) {
+                timeline.delete(txn, orderKey(roomId, order));
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface OrderedEvent {
+
+        void accept(long order, Event event);
+    }
+
+    @FunctionalInterface
+    private interface Write {
+
+        void run() throws IOException;
+    }
+}
@@ -17,20 +17,22 @@
 package io.github.ma1uta.jxclient.matrix;
 
 import static java.lang.System.Logger.Level.ERROR;
+import static java.lang.System.Logger.Level.WARNING;
 
 import io.github.ma1uta.jxclient.Account;
 import io.github.ma1uta.jxclient.AccountManager;
+import io.github.ma1uta.jxclient.ui.UiScheduler;
 import io.github.ma1uta.jxclient.ui.matrix.AccountViewController;
 import io.github.ma1uta.jxclient.ui.matrix.LoginViewController;
 import io.github.ma1uta.matrix.Id;
 import io.github.ma1uta.matrix.client.MatrixClient;
 import io.github.ma1uta.matrix.client.model.account.WhoamiResponse;
 import io.github.ma1uta.matrix.client.model.auth.LoginResponse;
+import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
 import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
 import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
-import javafx.concurrent.ScheduledService;
 import javafx.concurrent.Service;
 import javafx.concurrent.Task;
 import javafx.fxml.FXMLLoader;
@@ -38,17 +40,15 @@ import javafx.scene.Parent;
 import javafx.scene.control.Alert;
 import javafx.scene.control.ButtonType;
 import javafx.scene.control.Tab;
-import javafx.util.Duration;
 import org.kordamp.ikonli.javafx.FontIcon;
 import org.kordamp.ikonli.material.Material;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Queue;
+import java.util.List;
 import java.util.Random;
 import java.util.ResourceBundle;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -59,9 +59,7 @@ import java.util.prefs.Preferences;
  */
 public class MatrixAccount implements Account {
 
-    private static final double DEFAULT_SYNC_PERIOD = 0.3D;
-    private static final long DEFAULT_UI_SYNC_DELAY = 500L;
-    private static final int DEFAULT_UI_ACTIONS_QUEUE = 10;
+    private static final long SYNC_STOP_TIMEOUT = 30_000L;
 
     private System.Logger logger;
 
@@ -76,20 +74,39 @@ public class MatrixAccount implements Account {
     private LoginViewController loginViewController;
     private Parent loginView;
 
+    private PlainRequestFactory requestFactory;
     private MatrixClient client;
 
     private ResourceBundle i18n;
 
     private String userId;
+    private String storedUserId;
     private String deviceId;
+    private String nextBatch;
+    private String filterId;
 
     private AccountModeService accountModeService = new AccountModeService();
-    private ScheduledService<Void> syncLoop;
+    private SyncEngine syncEngine;
+    private SyncFilter syncFilter;
+    private SyncPipeline syncPipeline;
+    private SyncDriver syncDriver;
+    private volatile LocalStore store;
+    private volatile LocalStore.Batch storeBatch;
+    private final Backfiller backfiller = new Backfiller(this::getClient, this::getStore, Backfiller.DEFAULT_CONCURRENCY,
+        Backfiller.DEFAULT_LIMIT);
+    private SyncDriver.Mode syncMode = SyncDriver.Mode.LONG_POLL;
+    private long syncTimeout = SyncDriver.DEFAULT_TIMEOUT;
+    private long syncPeriod = SyncDriver.DEFAULT_PERIOD;
 
     private final BooleanProperty initialSync = new SimpleBooleanProperty(false);
     private MediaDownloader downloader;
 
-    private final Queue<Runnable> uiQueue = new ConcurrentLinkedQueue<>();
+    private volatile UiScheduler uiScheduler;
+    private long uiFrameBudget = UiScheduler.DEFAULT_FRAME_BUDGET;
+    private int uiQueueCapacity = UiScheduler.DEFAULT_CAPACITY;
+    private long uiQueueMaxWait = UiScheduler.DEFAULT_MAX_WAIT;
+    private final ThreadLocal<List<Runnable>> uiBatch = new ThreadLocal<>();
+    private final ThreadLocal<Boolean> syncApply = new ThreadLocal<>();
 
     private ScheduledExecutorService executorService = Executors.newScheduledThreadPool(2);
 
@@ -108,15 +125,29 @@ public class MatrixAccount implements Account {
     public void init(AccountManager accountManager, Preferences accountNode, ResourceBundle i18n) {
         this.accountManager = accountManager;
         if (accountNode == null) {
-            init(null, null, null, i18n);
+            resetUiScheduler();
+            init(null, null, null, null, i18n);
         } else {
-            init(accountNode.get("homeserver", null), accountNode.get("deviceId", null), accountNode.get("token", null), i18n);
+            this.syncMode = SyncDriver.Mode.valueOf(accountNode.get("syncMode", SyncDriver.Mode.LONG_POLL.name()));
+            this.syncTimeout = accountNode.getLong("syncTimeout", SyncDriver.DEFAULT_TIMEOUT);
+            this.syncPeriod = accountNode.getLong("syncPeriod", SyncDriver.DEFAULT_PERIOD);
+            this.storedUserId = accountNode.get("userId", null);
+            this.uiFrameBudget = accountNode.getLong("uiFrameBudget", UiScheduler.DEFAULT_FRAME_BUDGET);
+            this.uiQueueCapacity = accountNode.getInt("uiQueueCapacity", UiScheduler.DEFAULT_CAPACITY);
+            this.uiQueueMaxWait = accountNode.getLong("uiQueueMaxWait", UiScheduler.DEFAULT_MAX_WAIT);
+            resetUiScheduler();
+            if (SyncFilter.VERSION.equals(accountNode.get("filterVersion", null))) {
+                this.filterId = accountNode.get("filterId", null);
+            }
+            init(accountNode.get("homeserver", null), accountNode.get("deviceId", null), accountNode.get("token", null),
+                accountNode.get("nextBatch", null), i18n);
         }
     }
 
-    private void init(String homeserver, String deviceId, String token, ResourceBundle i18n) {
+    private void init(String homeserver, String deviceId, String token, String nextBatch, ResourceBundle i18n) {
         this.downloader = new MediaDownloader(this);
         this.i18n = i18n;
+        this.nextBatch = nextBatch;
         accountTab = new Tab();
         accountTab.setOnCloseRequest(event -> {
             if (isLoginView()) {
@@ -130,7 +161,10 @@ public class MatrixAccount implements Account {
                 event.consume();
             }
         });
-        accountTab.setOnClosed(event -> accountManager.removeAccount(this));
+        accountTab.setOnClosed(event -> {
+            accountManager.removeAccount(this);
+            close();
+        });
         accountTab.setContent(loadingView());
         accountView();
         if (homeserver == null || deviceId == null || token == null) {
@@ -140,42 +174,6 @@ public class MatrixAccount implements Account {
             accountModeService.updateDeviceInfo(homeserver, deviceId, token);
             accountModeService.start();
         }
-        syncLoop = new ScheduledService<>() {
-            @Override
-            protected Task<Void> createTask() {
-                return new Task<>() {
-                    @Override
-                    protected Void call() throws Exception {
-                        MatrixAccount.this.parseSync(MatrixAccount.this.client.sync().sync(
-                            "",
-                            "",
-                            true,
-                            "",
-                            0L
-                        ).join());
-                        return null;
-                    }
-                };
-            }
-        };
-        syncLoop.setExecutor(executorService);
-        syncLoop.setPeriod(Duration.seconds(DEFAULT_SYNC_PERIOD));
-        executorService.scheduleAtFixedRate(() -> {
-            int count = 0;
-            Runnable action;
-            var actionsToRun = new ArrayList<Runnable>(DEFAULT_UI_ACTIONS_QUEUE);
-            do {
-                action = uiQueue.poll();
-                if (action != null) {
-                    actionsToRun.add(action);
-                    count++;
-                }
-            }
-            while (count < DEFAULT_UI_ACTIONS_QUEUE && action != null);
-            if (!actionsToRun.isEmpty()) {
-                Platform.runLater(() -> actionsToRun.forEach(Runnable::run));
-            }
-        }, 0, DEFAULT_UI_SYNC_DELAY, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -191,6 +189,10 @@ public class MatrixAccount implements Account {
         return client;
     }
 
+    public PlainRequestFactory getRequestFactory() {
+        return requestFactory;
+    }
+
     @Override
     public boolean isLoginView() {
         return this.deviceId == null;
@@ -198,13 +200,72 @@ public class MatrixAccount implements Account {
 
     @Override
     public void updateUI(Runnable action) {
-        uiQueue.offer(action);
+        var batch = uiBatch.get();
+        if (batch != null) {
+            batch.add(action);
+        } else {
+            if (isSyncApply()) {
+                uiScheduler.submitBlocking(action);
+            } else {
+                uiScheduler.submit(action);
+            }
+        }
+    }
+
+    @Override
+    public void updateUI(Object owner, String property, Runnable action) {
+        var batch = uiBatch.get();
+        if (batch != null) {
+            batch.add(action);
+        } else {
+            uiScheduler.submit(owner, property, action);
+        }
+    }
+
+    @Override
+    public void updateUI(Object owner, Runnable action, Runnable fallback) {
+        var batch = uiBatch.get();
+        if (batch != null) {
+            batch.add(action);
+        } else {
+            if (isSyncApply()) {
+                uiScheduler.submitBlocking(owner, action, fallback);
+            } else {
+                uiScheduler.submit(owner, action, fallback);
+            }
+        }
+    }
+
+    /**
+     * Only the sync apply stage waits for the free slot of the UI queue, so the sync slows down to the pace of the FX thread.
+     * The other producers (the media callbacks, the backfill) must not be blocked.
+     *
+     * @return {@code true} if the current thread applies the sync response.
+     */
+    private boolean isSyncApply() {
+        return Boolean.TRUE.equals(syncApply.get());
+    }
+
+    public UiScheduler getUiScheduler() {
+        return uiScheduler;
     }
 
     public MediaDownloader getDownloader() {
         return downloader;
     }
 
+    public SyncPipeline getSyncPipeline() {
+        return syncPipeline;
+    }
+
+    public Backfiller getBackfiller() {
+        return backfiller;
+    }
+
+    public LocalStore getStore() {
+        return store;
+    }
+
     private void showAccountView() {
         accountTab.setText(userId);
         accountTab.setContent(accountView);
@@ -223,21 +284,52 @@ public class MatrixAccount implements Account {
         prefs.put("homeserver", homeserver);
         prefs.put("token", token);
         prefs.put("deviceId", deviceId);
+        prefs.put("userId", userId);
         accountManager.sync(this, prefs);
     }
 
     private void userMode(String homeserver, String deviceId, String token) {
         try {
-            this.client = new MatrixClient.Builder().requestFactory(new PlainRequestFactory(homeserver, executorService)).accessToken(token)
-                .build();
+            if (stopSync()) {
+                // the queued updates belong to the views of the previous session.
+                resetUiScheduler();
+            }
+            var requestFactory = new PlainRequestFactory(homeserver);
+            this.requestFactory = requestFactory;
+            this.client = new MatrixClient.Builder().requestFactory(requestFactory).accessToken(token).build();
             this.client.getDefaultParams().deviceId(deviceId);
+            var restored = this.storedUserId != null && restoreSnapshot(requestFactory, this.storedUserId, deviceId);
+            this.syncEngine = new SyncEngine(requestFactory, this.client.getDefaultParams(),
+                restored ? this.store.getToken(LocalStore.NEXT_BATCH) : this.nextBatch, !restored,
+                newNextBatch -> accountManager.update(this, "nextBatch", newNextBatch));
+            this.syncFilter = new SyncFilter(this.client, this.filterId, newFilterId -> {
+                this.filterId = newFilterId;
+                accountManager.update(this, "filterVersion", SyncFilter.VERSION);
+                accountManager.update(this, "filterId", newFilterId);
+            }, SyncFilter.DEFAULT_TIMELINE_LIMIT, true);
+            this.syncPipeline = new SyncPipeline(deviceId, this.syncEngine, this::parseRoom, this::parseSync, this::abortBatch,
+                SyncPipeline.DEFAULT_DECODE_QUEUE, SyncPipeline.DEFAULT_APPLY_QUEUE);
+            this.syncDriver = new SyncDriver(this.syncEngine, this.syncPipeline, executorService, syncMode, syncTimeout, syncPeriod,
+                new Backoff(), this.syncFilter);
             this.client.account().whoami().thenApply(WhoamiResponse::getUserId).thenAccept(userId -> {
                 this.userId = userId;
                 this.deviceId = deviceId;
                 this.logger = System.getLogger("ACCOUNT-" + userId);
+                this.client.getDefaultParams().userId(userId);
                 syncPreferences(homeserver, deviceId, token);
-                Platform.runLater(this::showAccountView);
-                this.client.sync().sync(null, null, true, null, 0L).thenAccept(this::parseInitialSync);
+                if (!restored) {
+                    openStore(requestFactory, userId, deviceId);
+                    Platform.runLater(this::showAccountView);
+                }
+                this.syncFilter.register().thenAccept(newFilterId -> {
+                    this.syncEngine.setFilterId(newFilterId);
+                    setInitialSync(true);
+                    this.syncDriver.start();
+                });
+            }).exceptionally(throwable -> {
+                System.getLogger("CLIENT").log(ERROR, "Failed to start the account.", throwable);
+                anonymousMode();
+                return null;
             });
         } catch (Exception e) {
             System.getLogger("CLIENT").log(ERROR, "Credentials are wrong.", e);
@@ -302,6 +394,11 @@ public class MatrixAccount implements Account {
      */
     public void updateToken(LoginResponse loginResponse) {
         if (!accountModeService.isRunning()) {
+            this.nextBatch = null;
+            this.filterId = null;
+            this.storedUserId = null;
+            accountManager.update(this, "nextBatch", null);
+            accountManager.update(this, "filterId", null);
             accountModeService.reset();
             accountModeService.updateDeviceInfo(
                 Id.getInstance().domain(loginResponse.getUserId()),
@@ -311,27 +408,173 @@ public class MatrixAccount implements Account {
         }
     }
 
-    private void parseInitialSync(SyncResponse syncResponse) {
-        setInitialSync(true);
+    /**
+     * Stop the sync loop and wait until its apply stage exits, so the old pipeline no longer writes to the store.
+     *
+     * @return {@code true} if the sync loop was created.
+     */
+    private boolean stopSync() {
+        var driver = this.syncDriver;
+        if (driver == null) {
+            return false;
+        }
+        driver.stop();
         try {
-            accountViewController.parse(syncResponse);
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (!driver.awaitTermination(SYNC_STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                System.getLogger("CLIENT").log(WARNING, "The sync pipeline is still running.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.syncDriver = null;
+        return true;
+    }
+
+    private void resetUiScheduler() {
+        var previous = this.uiScheduler;
+        this.uiScheduler = new UiScheduler(uiFrameBudget, uiQueueCapacity, uiQueueMaxWait);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Release the removed account: stop the sync loop, close the store and unregister the UI scheduler metrics.
+     */
+    private void close() {
+        uiScheduler.close();
+        executorService.execute(() -> {
+            stopSync();
+            var localStore = this.store;
+            this.store = null;
+            // the pipeline which didn't stop in time still owns the write transaction.
+            if (localStore != null && this.storeBatch == null) {
+                localStore.close();
+            }
+            executorService.shutdown();
+        });
+    }
+
+    private void openStore(PlainRequestFactory requestFactory, String userId, String deviceId) {
+        if (this.storeBatch != null) {
+            throw new IllegalStateException("The local store has an uncommitted batch.");
+        }
+        if (this.store != null) {
+            this.store.close();
+            this.store = null;
+        }
+        try {
+            this.store = new LocalStore(LocalStore.location(userId, deviceId), requestFactory.getMapper(), LocalStore.DEFAULT_MAP_SIZE);
+        } catch (IOException | RuntimeException e) {
+            logger.log(ERROR, "Failed to open the local store.", e);
+        }
+    }
+
+    /**
+     * Render the rooms from the local store before the network sync starts. The UI actions of the restored rooms are applied
+     * at once instead of passing through the UI queue one by one.
+     *
+     * @param requestFactory the request factory.
+     * @param storedUserId   the user id of the last session.
+     * @param deviceId       the device id.
+     * @return {@code true} if the rooms are restored and the sync can continue from the stored token.
+     */
+    private boolean restoreSnapshot(PlainRequestFactory requestFactory, String storedUserId, String deviceId) {
+        this.logger = System.getLogger("ACCOUNT-" + storedUserId);
+        openStore(requestFactory, storedUserId, deviceId);
+        var localStore = this.store;
+        if (localStore == null || localStore.getToken(LocalStore.NEXT_BATCH) == null) {
+            return false;
+        }
+        this.userId = storedUserId;
+        this.deviceId = deviceId;
+        this.client.getDefaultParams().userId(storedUserId);
+
+        var actions = new ArrayList<Runnable>();
+        uiBatch.set(actions);
+        try {
+            for (String roomId : localStore.rooms()) {
+                accountViewController.parseRoom(roomId, localStore.snapshot(roomId, LocalStore.DEFAULT_SNAPSHOT_LIMIT));
+            }
         } finally {
-            setInitialSync(false);
+            uiBatch.remove();
+        }
+        Platform.runLater(() -> {
+            actions.forEach(Runnable::run);
+            showAccountView();
+        });
+        return true;
+    }
+
+    private LocalStore.Batch storeBatch() {
+        if (storeBatch == null && store != null) {
+            storeBatch = store.batch();
+        }
+        return storeBatch;
+    }
+
+    /**
+     * Abort the uncommitted batch of the failed response or of the stopped sync pipeline. It is invoked in the apply thread,
+     * which owns the write transaction.
+     */
+    private void abortBatch() {
+        var batch = storeBatch;
+        storeBatch = null;
+        if (batch != null) {
+            batch.close();
+        }
+    }
+
+    /**
+     * Continue without the local store when it is full, every later batch would fail and the stored {@code next_batch}
+     * token would never advance. It is invoked in the apply thread after the batch is released.
+     */
+    private void disableStore() {
+        var localStore = this.store;
+        this.store = null;
+        if (localStore != null) {
+            logger.log(ERROR, "The local store is full, the account continues without it.");
+            localStore.close();
+        }
+    }
+
+    private void parseRoom(String roomId, JoinedRoom joinedRoom) {
+        var batch = storeBatch();
+        if (batch != null) {
+            batch.room(roomId, joinedRoom);
+        }
+        syncApply.set(Boolean.TRUE);
+        try {
+            accountViewController.parseRoom(roomId, joinedRoom);
+        } finally {
+            syncApply.remove();
         }
     }
 
     private void parseSync(SyncResponse syncResponse) {
-        if (!isInitialSync()) {
-            setInitialSync(true);
-            try {
-                accountViewController.parse(syncResponse);
-            } catch (Exception e) {
-                e.printStackTrace();
+        var batch = storeBatch();
+        if (batch != null) {
+            try (batch) {
+                var rooms = syncResponse.getRooms();
+                if (rooms != null && rooms.getLeave() != null) {
+                    rooms.getLeave().keySet().forEach(batch::leave);
+                }
+                batch.accountData(syncResponse.getAccountData());
+                batch.token(LocalStore.NEXT_BATCH, syncResponse.getNextBatch());
+                batch.commit();
             } finally {
-                setInitialSync(false);
+                storeBatch = null;
             }
+            if (batch.isFull()) {
+                disableStore();
+            }
+        }
+        syncApply.set(Boolean.TRUE);
+        try {
+            accountViewController.parse(syncResponse);
+        } finally {
+            syncApply.remove();
+            setInitialSync(false);
         }
     }
 
@@ -0,0 +1,294 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import static java.lang.System.Logger.Level.DEBUG;
+import static java.lang.System.Logger.Level.ERROR;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent media cache. The media is addressed by the server name and the media id of the mxc url (and the variant if
+ * the media is a thumbnail), so the same content is downloaded only once. The files are written to the temporary file and
+ * then renamed, so the cache never contains the partially written files. The total size of the cache is bounded, the least
+ * recently used files are evicted first. The small index with the keys and the sizes of the cached files is kept next to
+ * them, so the cache doesn't scan the directory on start. The index is the append-only log of the added, accessed and
+ * removed files, it is rewritten only when the log grows much larger than the cache. The replayed log restores the access
+ * order, so the eviction after the restart still removes the least recently used files.
+ *
+ * <p>The file names are the hashes of the mxc url parts, so the server name and the media id cannot point outside of the
+ * cache directory.</p>
+ */
+public class MediaCache {
+
+    private static final System.Logger LOGGER = System.getLogger("MEDIA_CACHE");
+
+    /**
+     * Default maximum size of the cache in bytes.
+     */
+    public static final long DEFAULT_MAX_SIZE = 512L * 1024 * 1024;
+
+    private static final String INDEX = "index";
+    private static final String SEPARATOR = "\t";
+    private static final String REMOVED = "-";
+    private static final String ACCESSED = "+";
+    private static final String DIGEST = "SHA-256";
+    private static final int DIRECTORY_LENGTH = 2;
+    private static final int COMPACT_FACTOR = 2;
+    private static final float LOAD_FACTOR = 0.75F;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final Path location;
+    private final long maxSize;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+    private long size;
+    private boolean loaded;
+    private int indexLines;
+
+    /**
+     * Create a new cache.
+     *
+     * @param location the cache directory.
+     * @param maxSize  the maximum size of the cache in bytes.
+     */
+    public MediaCache(Path location, long maxSize) {
+        this.location = location.toAbsolutePath().normalize();
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Provides the default location of the media cache.
+     *
+     * @return the cache directory.
+     */
+    public static Path defaultLocation() {
+        return Paths.get(System.getProperty("user.home"), ".jxclient", "media");
+    }
+
+    /**
+     * Provides the cache key of the media.
+     *
+     * @param serverName the server name of the mxc url.
+     * @param mediaId    the media id of the mxc url.
+     * @param variant    the thumbnail variant or {@code null} for the original media.
+     * @return the cache key.
+     */
+    public static String key(String serverName, String mediaId, String variant) {
+        try {
+            var digest = MessageDigest.getInstance(DIGEST);
+            digest.update(serverName.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '/');
+            digest.update(mediaId.getBytes(StandardCharsets.UTF_8));
+            if (variant != null) {
+                digest.update((byte) '-');
+                digest.update(variant.getBytes(StandardCharsets.UTF_8));
+            }
+            var hash = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hash.append(String.format("%02x", b));
+            }
+            return hash.substring(0, DIRECTORY_LENGTH) + "/" + hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST + " isn't supported.", e);
+        }
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Find the cached media.
+     *
+     * @param key the cache key.
+     * @return the cached file or {@code null} if the media isn't cached.
+     */
+    public synchronized Path get(String key) {
+        load();
+        var file = resolve(key);
+        if (entries.get(key) != null) {
+            if (Files.exists(file)) {
+                appendIndex(List.of(ACCESSED + SEPARATOR + key));
+                return file;
+            }
+            remove(key);
+            appendIndex(List.of(REMOVED + SEPARATOR + key));
+            return null;
+        }
+        // the file was renamed but the index wasn't saved.
+        if (Files.exists(file)) {
+            try {
+                var fileSize = Files.size(file);
+                add(key, fileSize);
+                appendIndex(List.of(fileSize + SEPARATOR + key));
+                return file;
+            } catch (IOException e) {
+                LOGGER.log(DEBUG, "Failed to read the size of the cached file.", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write the media to the cache.
+     *
+     * @param key     the cache key.
+     * @param content the media content.
+     * @return the cached file.
+     * @throws IOException when the media cannot be written.
+     */
+    public Path put(String key, InputStream content) throws IOException {
+        var file = resolve(key);
+        Files.createDirectories(file.getParent());
+        var temp = Files.createTempFile(file.getParent(), "download", ".tmp");
+        try {
+            var written = Files.copy(content, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            synchronized (this) {
+                load();
+                add(key, written);
+                var lines = new ArrayList<String>();
+                lines.add(written + SEPARATOR + key);
+                for (String evicted : evict(key)) {
+                    lines.add(REMOVED + SEPARATOR + evicted);
+                }
+                appendIndex(lines);
+            }
+            return file;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Path resolve(String key) {
+        var file = location.resolve(key).normalize();
+        if (!file.startsWith(location) || file.equals(location)) {
+            throw new IllegalArgumentException("Wrong cache key: " + key);
+        }
+        return file;
+    }
+
+    private void add(String key, long fileSize) {
+        var previous = entries.put(key, fileSize);
+        size += fileSize - (previous != null ? previous : 0L);
+    }
+
+    private void remove(String key) {
+        var previous = entries.remove(key);
+        if (previous != null) {
+            size -= previous;
+        }
+    }
+
+    private List<String> evict(String retained) {
+        var evicted = new ArrayList<String>();
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            var entry = iterator.next();
+            if (entry.getKey().equals(retained)) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(resolve(entry.getKey()));
+                size -= entry.getValue();
+                evicted.add(entry.getKey());
+                iterator.remove();
+            } catch (IOException | IllegalArgumentException e) {
+                LOGGER.log(ERROR, "Failed to evict the cached file.", e);
+            }
+        }
+        return evicted;
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        var index = location.resolve(INDEX);
+        if (!Files.exists(index)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+                indexLines++;
+                var separator = line.indexOf(SEPARATOR);
+                if (separator <= 0) {
+                    continue;
+                }
+                var key = line.substring(separator + 1);
+                var value = line.substring(0, separator);
+                if (REMOVED.equals(value)) {
+                    remove(key);
+                } else if (ACCESSED.equals(value)) {
+                    // the entries are in the access order, so the lookup moves the accessed file to the tail.
+                    entries.get(key);
+                } else {
+                    try {
+                        add(key, Long.parseLong(value));
+                    } catch (NumberFormatException e) {
+                        LOGGER.log(DEBUG, "Skip the broken line of the media cache index.", e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(ERROR, "Failed to read the media cache index.", e);
+        }
+    }
+
+    private void appendIndex(List<String> lines) {
+        if (indexLines + lines.size() > COMPACT_FACTOR * Math.max(entries.size(), INITIAL_CAPACITY)) {
+            saveIndex();
+            return;
+        }
+        try {
+            Files.createDirectories(location);
+            Files.write(location.resolve(INDEX), lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            indexLines += lines.size();
+        } catch (IOException e) {
+            LOGGER.log(ERROR, "Failed to write the media cache index.", e);
+        }
+    }
+
+    private void saveIndex() {
+        var lines = new ArrayList<String>(entries.size());
+        entries.forEach((key, fileSize) -> lines.add(fileSize + SEPARATOR + key));
+        try {
+            Files.createDirectories(location);
+            var temp = Files.createTempFile(location, INDEX, ".tmp");
+            Files.write(temp, lines, StandardCharsets.UTF_8);
+            Files.move(temp, location.resolve(INDEX), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            indexLines = lines.size();
+        } catch (IOException e) {
+            LOGGER.log(ERROR, "Failed to write the media cache index.", e);
+        }
+    }
+}
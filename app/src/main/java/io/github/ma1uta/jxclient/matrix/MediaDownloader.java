@@ -16,19 +16,74 @@
 
 package io.github.ma1uta.jxclient.matrix;
 
+import static java.lang.System.Logger.Level.ERROR;
+
+import javafx.application.Platform;
+import javafx.stage.Screen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 /**
- * Download various media content (images, audio, video).
+ * Download various media content (images, audio, video). The downloaded content is kept in the persistent media cache,
+ * the cached content is provided as the file url without network requests. The same media requested several times while it is
+ * being downloaded is downloaded once.
  */
 public class MediaDownloader {
 
+    private static final System.Logger LOGGER = System.getLogger("MEDIA_DOWNLOADER");
+
+    private static final String MXC = "mxc://";
+
+    private static final MediaCache CACHE = new MediaCache(MediaCache.defaultLocation(), MediaCache.DEFAULT_MAX_SIZE);
+
+    private static final Map<String, CompletableFuture<String>> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    /**
+     * Standard thumbnail sizes, the same as the default sizes generated by the homeservers.
+     */
+    private static final Thumbnail[] THUMBNAILS = {
+        new Thumbnail(32, 32, "crop"),
+        new Thumbnail(96, 96, "crop"),
+        new Thumbnail(320, 240, "scale"),
+        new Thumbnail(640, 480, "scale"),
+        new Thumbnail(800, 600, "scale")
+    };
+
     private final MatrixAccount account;
 
+    /**
+     * The output scale of the primary screen. The screen is read in the FX thread only, the thumbnails requested in the other
+     * threads use the captured scale.
+     */
+    private volatile double outputScaleX = 1D;
+    private volatile double outputScaleY = 1D;
+
+    /**
+     * Create a new downloader.
+     *
+     * @param account the account.
+     */
     public MediaDownloader(MatrixAccount account) {
         this.account = account;
+        if (Platform.isFxApplicationThread()) {
+            captureOutputScale();
+        } else {
+            Platform.runLater(this::captureOutputScale);
+        }
+    }
+
+    private void captureOutputScale() {
+        var screen = Screen.getPrimary();
+        this.outputScaleX = screen.getOutputScaleX();
+        this.outputScaleY = screen.getOutputScaleY();
     }
 
     /**
@@ -38,26 +93,64 @@ public class MediaDownloader {
      * @return url with http/https/file schemas with content.
      */
     public CompletionStage<String> download(String mxcUrl) {
+        return resolve(mxcUrl, null);
+    }
+
+    /**
+     * Download the thumbnail of the media content. The thumbnail is requested at the smallest standard size which covers
+     * the target size on the primary screen, the original content is downloaded if the target size is larger than all of them.
+     * Each thumbnail size is cached separately.
+     *
+     * @param mxcUrl content url.
+     * @param width  the target width.
+     * @param height the target height.
+     * @return url with http/https/file schemas with content.
+     */
+    public CompletionStage<String> thumbnail(String mxcUrl, double width, double height) {
+        var pixelWidth = width * outputScaleX;
+        var pixelHeight = height * outputScaleY;
+        for (Thumbnail thumbnail : THUMBNAILS) {
+            if (thumbnail.width >= pixelWidth && thumbnail.height >= pixelHeight) {
+                return resolve(mxcUrl, thumbnail);
+            }
+        }
+        return resolve(mxcUrl, null);
+    }
+
+    private CompletionStage<String> resolve(String mxcUrl, Thumbnail thumbnail) {
+        var start = mxcUrl != null ? mxcUrl.indexOf(MXC) : -1;
+        var separator = start >= 0 ? mxcUrl.indexOf('/', start + MXC.length()) : -1;
+        if (separator < 0 || separator == mxcUrl.length() - 1) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Wrong mxc url: " + mxcUrl));
+        }
+        var serverName = mxcUrl.substring(start + MXC.length(), separator);
+        var mediaId = mxcUrl.substring(separator + 1);
+        var cacheKey = MediaCache.key(serverName, mediaId, thumbnail != null ? thumbnail.toString() : null);
+        var path = serverName + "/" + mediaId;
+        if (thumbnail == null) {
+            path = "/_matrix/media/r0/download/" + path;
+        } else {
+            path = String.format("/_matrix/media/r0/thumbnail/%s?width=%d&height=%d&method=%s", path, thumbnail.width, thumbnail.height,
+                thumbnail.method);
+        }
+
+        var requestPath = path;
         var result = new CompletableFuture<String>();
-        int start = mxcUrl.indexOf("mxc://") + "mxc://".length();
-        result.complete("https://" + account.getClient().getHomeserverUrl() + "/_matrix/media/r0/download/" + mxcUrl.substring(start));
-        //TODO enable cache
-        /*account.getExecutorService().execute(() -> {
-            validate(mxcUrl);
-            int start = mxcUrl.indexOf("mxc://");
-            int domain = mxcUrl.indexOf("/", start);
-            account.getClient().content().download(mxcUrl.substring(start, domain), mxcUrl.substring(domain), true)
-                .thenAccept(inputStream -> {
-                    try {
-                        Path cacheLocation = Paths.get("");
-                        Files.copy(inputStream, cacheLocation);
-                        result.complete(cacheLocation.toUri().toURL().toExternalForm());
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        result.completeExceptionally(e);
-                    }
-                });
-        });*/
+        var existing = IN_FLIGHT.putIfAbsent(cacheKey, result);
+        if (existing != null) {
+            account.getRequestFactory().downloadCoalesced();
+            return existing;
+        }
+        CompletableFuture.supplyAsync(() -> CACHE.get(cacheKey), HttpClients.executor())
+            .thenCompose(cached -> cached != null ? CompletableFuture.completedFuture(cached) : fetch(cacheKey, requestPath))
+            .whenComplete((file, throwable) -> {
+                IN_FLIGHT.remove(cacheKey, result);
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                } else {
+                    result.complete(file.toUri().toString());
+                }
+            });
         return result;
     }
 
@@ -68,10 +161,79 @@ public class MediaDownloader {
      * @param callback callback.
      */
     public void download(String mxcUrl, Consumer<String> callback) {
-        download(mxcUrl).thenAccept(url -> account.updateUI(() -> callback.accept(url)));
+        complete(download(mxcUrl), callback);
     }
 
-    private void validate(String mxcUrl) {
-        //TODO
+    /**
+     * Download the thumbnail of the media content and invoke the callback in the FXThread.
+     *
+     * @param mxcUrl   content url.
+     * @param width    the target width.
+     * @param height   the target height.
+     * @param callback callback.
+     */
+    public void thumbnail(String mxcUrl, double width, double height, Consumer<String> callback) {
+        complete(thumbnail(mxcUrl, width, height), callback);
+    }
+
+    /**
+     * Download the thumbnail of the media content and invoke the callback in the FXThread. The pending callback of the same
+     * owner and property is replaced, so only the latest thumbnail is applied.
+     *
+     * @param mxcUrl   content url.
+     * @param width    the target width.
+     * @param height   the target height.
+     * @param owner    the updated object.
+     * @param property the updated property.
+     * @param callback callback.
+     */
+    public void thumbnail(String mxcUrl, double width, double height, Object owner, String property, Consumer<String> callback) {
+        thumbnail(mxcUrl, width, height).whenComplete((url, throwable) -> {
+            if (throwable != null) {
+                LOGGER.log(ERROR, "Failed to download the media.", throwable);
+            } else {
+                account.updateUI(owner, property, () -> callback.accept(url));
+            }
+        });
+    }
+
+    private void complete(CompletionStage<String> download, Consumer<String> callback) {
+        download.whenComplete((url, throwable) -> {
+            if (throwable != null) {
+                LOGGER.log(ERROR, "Failed to download the media.", throwable);
+            } else {
+                account.updateUI(() -> callback.accept(url));
+            }
+        });
+    }
+
+    private CompletableFuture<Path> fetch(String key, String path) {
+        return account.getRequestFactory().download(path, body -> store(key, body));
+    }
+
+    private Path store(String key, InputStream body) {
+        try (body) {
+            return CACHE.put(key, body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static final class Thumbnail {
+
+        private final int width;
+        private final int height;
+        private final String method;
+
+        private Thumbnail(int width, int height, String method) {
+            this.width = width;
+            this.height = height;
+            this.method = method;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "-" + method;
+        }
     }
 }
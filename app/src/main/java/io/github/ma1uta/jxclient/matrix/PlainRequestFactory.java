@@ -20,50 +20,46 @@ import static java.lang.System.Logger.Level.DEBUG;
 import static java.lang.System.Logger.Level.ERROR;
 import static java.lang.System.Logger.Level.WARNING;
 
-import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.module.SimpleModule;
 import io.github.ma1uta.matrix.EmptyResponse;
 import io.github.ma1uta.matrix.ErrorResponse;
 import io.github.ma1uta.matrix.RateLimitedErrorResponse;
-import io.github.ma1uta.matrix.Secured;
 import io.github.ma1uta.matrix.client.AuthenticationRequred;
 import io.github.ma1uta.matrix.client.RequestParams;
 import io.github.ma1uta.matrix.client.factory.RequestFactory;
 import io.github.ma1uta.matrix.client.model.auth.AuthenticationFlows;
-import io.github.ma1uta.matrix.event.Event;
 import io.github.ma1uta.matrix.event.content.EventContent;
-import io.github.ma1uta.matrix.event.content.RoomEncryptedContent;
-import io.github.ma1uta.matrix.event.content.RoomMessageContent;
 import io.github.ma1uta.matrix.impl.exception.MatrixException;
 import io.github.ma1uta.matrix.impl.exception.RateLimitedException;
 import io.github.ma1uta.matrix.support.jackson.EventContentDeserializer;
-import io.github.ma1uta.matrix.support.jackson.EventDeserializer;
-import io.github.ma1uta.matrix.support.jackson.RoomEncryptedContentDeserializer;
-import io.github.ma1uta.matrix.support.jackson.RoomMessageContentDeserializer;
 
 import java.io.IOException;
-import java.lang.reflect.Method;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
-import java.util.Arrays;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Supplier;
-import javax.ws.rs.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
@@ -75,24 +71,61 @@ public class PlainRequestFactory implements RequestFactory {
 
     private static final System.Logger LOGGER = System.getLogger("PLAIN_REQUEST_FACTRORY");
 
+    private static final int SERVER_ERROR = 500;
+
+    /**
+     * The delay before the first retry of the rate limited request if the homeserver doesn't provide it, in milliseconds.
+     */
+    private static final long INITIAL_RATE_LIMITED_DELAY = 1_000L;
+
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+    private static final String ACCEPT_ENCODING = GZIP + ", " + DEFLATE;
+    private static final int DECODER_BUFFER = 8192;
+
+    private static final String DOWNLOAD_ROUTE = "media#download";
+
+    /**
+     * Response bodies are read from the blocking input streams, so they are read outside of the http client executor.
+     */
+    private static final ExecutorService BODY_READERS = Executors.newCachedThreadPool(runnable -> {
+        var thread = new Thread(runnable, "response-body-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final String homeserverUrl;
     private final HttpClient httpClient;
+    private final RateLimiter rateLimiter;
+    private final CircuitBreaker circuitBreaker;
+    private final RetryPolicy retryPolicy;
+    private final boolean compression;
+    private final RequestMetrics metrics;
     private final ObjectMapper mapper;
     private final EventContentDeserializer eventContentDeserializer = new EventContentDeserializer();
 
-    public PlainRequestFactory(String homeserverUrl, ExecutorService executorService) {
-        this.homeserverUrl = Objects.requireNonNull(homeserverUrl, "Homeserver must be specified.");
-        this.httpClient = HttpClient.newBuilder().executor(executorService).build();
-        this.mapper = new ObjectMapper();
+    private final Map<List<Object>, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedRequests = new AtomicLong();
 
-        var eventModule = new SimpleModule();
-        eventModule.addDeserializer(Event.class, new EventDeserializer());
-        eventModule.addDeserializer(RoomEncryptedContent.class, new RoomEncryptedContentDeserializer());
-        eventModule.addDeserializer(RoomMessageContent.class, new RoomMessageContentDeserializer());
+    public PlainRequestFactory(String homeserverUrl) {
+        this(homeserverUrl, RetryPolicy.DEFAULT);
+    }
 
-        mapper.registerModule(eventModule);
-        mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
-        mapper.setSerializationInclusion(JsonInclude.Include.NON_EMPTY);
+    /**
+     * Create a new request factory.
+     *
+     * @param homeserverUrl the homeserver url.
+     * @param retryPolicy   the retry policy of the transient failures.
+     */
+    public PlainRequestFactory(String homeserverUrl, RetryPolicy retryPolicy) {
+        this.homeserverUrl = Objects.requireNonNull(homeserverUrl, "Homeserver must be specified.");
+        this.httpClient = HttpClients.get(homeserverUrl);
+        this.rateLimiter = RateLimiter.get(homeserverUrl);
+        this.circuitBreaker = CircuitBreaker.get(homeserverUrl);
+        this.retryPolicy = retryPolicy;
+        this.compression = HttpClients.isCompressionEnabled(homeserverUrl);
+        this.metrics = RequestMetrics.get(homeserverUrl);
+        this.mapper = Json.mapper();
     }
 
     @Override
@@ -100,6 +133,24 @@ public class PlainRequestFactory implements RequestFactory {
         return homeserverUrl;
     }
 
+    public ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    public RequestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Provides the count of the GET requests which weren't sent because the identical request was already in flight. The
+     * media downloads joined by the caller (see {@link #downloadCoalesced()}) are counted too.
+     *
+     * @return the count of the coalesced requests.
+     */
+    public long getCoalescedRequests() {
+        return coalescedRequests.get();
+    }
+
     @Override
     public <T, R> CompletableFuture<R> post(Class<?> apiClass, String apiMethod, RequestParams params, T payload, Class<R> responseClass) {
         return post(apiClass, apiMethod, params, payload, responseClass, MediaType.APPLICATION_JSON);
@@ -108,31 +159,104 @@ public class PlainRequestFactory implements RequestFactory {
     @Override
     public <T, R> CompletableFuture<R> post(Class<?> apiClass, String apiMethod, RequestParams params, T payload, Class<R> responseClass,
                                             String requestType) {
-        return invokeRequest(createRequest(apiClass, apiMethod, params, payload, HttpRequest.Builder::POST, requestType),
-            extractor(responseClass));
+        return invokeRequest(metrics(apiClass, apiMethod),
+            createRequest(apiClass, apiMethod, params, payload, HttpRequest.Builder::POST, requestType), extractor(responseClass));
     }
 
     @Override
     public <R> CompletableFuture<R> get(Class<?> apiClass, String apiMethod, RequestParams params, GenericType<R> genericType) {
-        return invokeRequest(createRequest(apiClass, apiMethod, params, HttpRequest.Builder::GET),
-            extractor(genericType));
+        return coalesce(metrics(apiClass, apiMethod), createRequest(apiClass, apiMethod, params, HttpRequest.Builder::GET),
+            genericType.getType(), extractor(genericType));
     }
 
     @Override
     public <R> CompletableFuture<R> get(Class<?> apiClass, String apiMethod, RequestParams params, Class<R> responseClass) {
-        return invokeRequest(createRequest(apiClass, apiMethod, params, HttpRequest.Builder::GET),
-            extractor(responseClass));
+        return coalesce(metrics(apiClass, apiMethod), createRequest(apiClass, apiMethod, params, HttpRequest.Builder::GET),
+            responseClass, extractor(responseClass));
+    }
+
+    /**
+     * Invoke the GET request and read the response body with the specified reader as the body is being downloaded.
+     *
+     * @param apiClass  Invoked api class.
+     * @param apiMethod Invoked api method.
+     * @param params    The request parameters.
+     * @param reader    The streaming reader of the response body.
+     * @param <R>       The response class.
+     * @return The response promise.
+     */
+    public <R> CompletableFuture<R> stream(Class<?> apiClass, String apiMethod, RequestParams params, Function<InputStream, R> reader) {
+        return stream(apiClass, apiMethod, params, HttpClients.DEFAULT_REQUEST_TIMEOUT, reader);
+    }
+
+    /**
+     * Invoke the GET request with the specified timeout and read the response body with the specified reader as the body is
+     * being downloaded. The long-poll requests, which the homeserver holds for their server-side timeout, should set the
+     * timeout longer than it.
+     *
+     * @param apiClass  Invoked api class.
+     * @param apiMethod Invoked api method.
+     * @param params    The request parameters.
+     * @param timeout   The time to wait for the response headers.
+     * @param reader    The streaming reader of the response body.
+     * @param <R>       The response class.
+     * @return The response promise.
+     */
+    public <R> CompletableFuture<R> stream(Class<?> apiClass, String apiMethod, RequestParams params, Duration timeout,
+                                           Function<InputStream, R> reader) {
+        return invokeRequest(metrics(apiClass, apiMethod),
+            createRequest(apiClass, apiMethod, params, builder -> builder.GET().timeout(timeout)), reader);
+    }
+
+    /**
+     * Download the media content. The downloads aren't coalesced here because every caller reads the content with its own
+     * reader, the caller should join the download of the same media which is already in flight (see
+     * {@link #downloadCoalesced()}).
+     *
+     * @param path   The path of the media api request with the query.
+     * @param reader The streaming reader of the content.
+     * @param <R>    The result class.
+     * @return The result promise.
+     */
+    public <R> CompletableFuture<R> download(String path, Function<InputStream, R> reader) {
+        return invokeRequest(metrics.route(DOWNLOAD_ROUTE), request(URI.create(baseUrl() + path)).GET().build(), reader);
+    }
+
+    /**
+     * Register the media download which isn't sent because the caller joined the download of the same media in flight.
+     */
+    public void downloadCoalesced() {
+        coalescedRequests.incrementAndGet();
+        metrics.route(DOWNLOAD_ROUTE).coalesced();
+    }
+
+    /**
+     * Check that the homeserver is reachable. Any response except the server errors means that it is. The probe bypasses the
+     * circuit breaker, so the reachable homeserver closes the circuit and the next request isn't rejected.
+     *
+     * @return {@code true} if the homeserver is reachable, else {@code false}.
+     */
+    public CompletableFuture<Boolean> probe() {
+        var request = request(URI.create(baseUrl() + "/_matrix/client/versions")).GET().build();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()).handle((response, throwable) -> {
+            var reachable = throwable == null && response.statusCode() < SERVER_ERROR;
+            if (reachable) {
+                circuitBreaker.success();
+            }
+            return reachable;
+        });
     }
 
     @Override
     public <T, R> CompletableFuture<R> put(Class<?> apiClass, String apiMethod, RequestParams params, T payload, Class<R> responseClass) {
-        return invokeRequest(createRequest(apiClass, apiMethod, params, payload, HttpRequest.Builder::PUT, MediaType.APPLICATION_JSON),
+        return invokeRequest(metrics(apiClass, apiMethod),
+            createRequest(apiClass, apiMethod, params, payload, HttpRequest.Builder::PUT, MediaType.APPLICATION_JSON),
             extractor(responseClass));
     }
 
     @Override
     public CompletableFuture<EmptyResponse> delete(Class<?> apiClass, String apiMethod, RequestParams params) {
-        return invokeRequest(createRequest(apiClass, apiMethod, params, HttpRequest.Builder::DELETE),
+        return invokeRequest(metrics(apiClass, apiMethod), createRequest(apiClass, apiMethod, params, HttpRequest.Builder::DELETE),
             extractor(EmptyResponse.class));
     }
 
@@ -152,10 +276,10 @@ public class PlainRequestFactory implements RequestFactory {
      * @param <R>         The class of the instance.
      * @return the entity extractor.
      */
-    private <R> Function<byte[], R> extractor(GenericType<R> genericType) {
+    private <R> Function<InputStream, R> extractor(GenericType<R> genericType) {
         return response -> {
             try {
-                return mapper.readValue(response, mapper.getTypeFactory().constructType(genericType.getType()));
+                return Json.reader(genericType.getType()).readValue(response);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -169,16 +293,27 @@ public class PlainRequestFactory implements RequestFactory {
      * @param <R>           The class of the instance.
      * @return the entity extractor.
      */
-    private <R> Function<byte[], R> extractor(Class<R> responseClass) {
+    private <R> Function<InputStream, R> extractor(Class<R> responseClass) {
         return response -> {
             try {
-                return mapper.readValue(response, responseClass);
+                return Json.reader(responseClass).readValue(response);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         };
     }
 
+    /**
+     * Provides the metrics of the api method.
+     *
+     * @param apiClass  Invoked api class.
+     * @param apiMethod Invoked method.
+     * @return The route metrics.
+     */
+    private RouteMetrics metrics(Class<?> apiClass, String apiMethod) {
+        return metrics.route(RequestMetrics.route(apiClass, apiMethod));
+    }
+
     /**
      * Build request uri.
      *
@@ -188,47 +323,25 @@ public class PlainRequestFactory implements RequestFactory {
      * @return The request URI.
      */
     private URI uri(Class<?> apiClass, String apiMethod, RequestParams params) {
-        validateMethod(apiClass, apiMethod, params);
+        var route = Route.of(apiClass, apiMethod);
+        validateMethod(route, params);
+        URI uri = URI.create(route.url(baseUrl(), params));
+        LOGGER.log(DEBUG, "Request url: {}", uri);
+        return uri;
+    }
 
+    /**
+     * Provides the homeserver url with the schema.
+     *
+     * @return The homeserver url.
+     */
+    private String baseUrl() {
         String hs = getHomeserverUrl();
 
-        if (!hs.startsWith("http://") || hs.startsWith("https://")) {
+        if (!(hs.startsWith("http://") || hs.startsWith("https://"))) {
             hs = "https://" + hs;
         }
-
-        var urlBuilder = new StringBuilder(hs);
-        var classAnnotation = apiClass.getAnnotation(Path.class);
-        urlBuilder.append(classAnnotation.value());
-        var methodPath = (String) AccessController.doPrivileged((PrivilegedAction<?>) () -> {
-            for (Method method : apiClass.getDeclaredMethods()) {
-                if (method.getName().equals(apiMethod)) {
-                    return method.getAnnotation(Path.class).value();
-                }
-            }
-            throw new IllegalArgumentException(String.format("%s doesn't contain a method: %s", apiClass.getName(), apiMethod));
-        });
-        urlBuilder.append(methodPath);
-
-        var skipAmp = true;
-        if (!params.getQueryParams().isEmpty()) {
-            urlBuilder.append("?");
-            for (Map.Entry<String, String> parameterEntry : params.getQueryParams().entrySet()) {
-                if (!skipAmp) {
-                    urlBuilder.append("&");
-                } else {
-                    skipAmp = false;
-                }
-                urlBuilder.append(parameterEntry.getKey()).append("=").append(parameterEntry.getValue());
-            }
-        }
-
-        var pathTemplate = urlBuilder.toString();
-        for (Map.Entry<String, String> pathEntry : params.getPathParams().entrySet()) {
-            pathTemplate = pathTemplate.replace("{" + pathEntry.getKey() + "}", encode(pathEntry.getValue()));
-        }
-        URI uri = URI.create(pathTemplate);
-        LOGGER.log(DEBUG, "Request url: {}", uri);
-        return uri;
+        return hs;
     }
 
     /**
@@ -251,18 +364,12 @@ public class PlainRequestFactory implements RequestFactory {
     /**
      * Check that the access token is provided if the protected resource is requested.
      *
-     * @param apiClass  API class.
-     * @param apiMethod API method.
-     * @param params    The request params.
+     * @param route  The api method route.
+     * @param params The request params.
      * @throws IllegalArgumentException if the access token missing.
      */
-    private void validateMethod(Class<?> apiClass, String apiMethod, RequestParams params) {
-        Method[] methods = AccessController.doPrivileged((PrivilegedAction<Method[]>) apiClass::getDeclaredMethods);
-        Method method = Arrays.stream(methods).filter(m -> m.getName().equals(apiMethod)).findAny().orElseThrow(
-            () -> new IllegalArgumentException(String.format("Cannot find the method %s in the class %s", apiMethod, apiClass.getName())));
-
-        boolean secured = method.getAnnotation(Secured.class) != null;
-        if (secured && (params.getAccessToken() == null || params.getAccessToken().trim().isEmpty())) {
+    private void validateMethod(Route route, RequestParams params) {
+        if (route.isSecured() && (params.getAccessToken() == null || params.getAccessToken().trim().isEmpty())) {
             throw new IllegalArgumentException("The `access_token` should be specified in order to access to the secured resource.");
         }
     }
@@ -284,7 +391,7 @@ public class PlainRequestFactory implements RequestFactory {
                                       Object payload,
                                       BiFunction<HttpRequest.Builder, HttpRequest.BodyPublisher, HttpRequest.Builder> action,
                                       String contentType) {
-        var builder = HttpRequest.newBuilder(uri(apiClass, apiMethod, params));
+        var builder = request(uri(apiClass, apiMethod, params));
         builder = action.apply(builder, createPublisher(payload));
         builder = applyHeaders(builder, params, contentType);
         return builder.build();
@@ -303,12 +410,22 @@ public class PlainRequestFactory implements RequestFactory {
                                       String apiMethod,
                                       RequestParams params,
                                       Function<HttpRequest.Builder, HttpRequest.Builder> action) {
-        var builder = HttpRequest.newBuilder(uri(apiClass, apiMethod, params));
+        var builder = request(uri(apiClass, apiMethod, params));
         builder = action.apply(builder);
         builder = applyHeaders(builder, params, MediaType.APPLICATION_JSON);
         return builder.build();
     }
 
+    /**
+     * Create the request builder with the default request timeout.
+     *
+     * @param uri The request uri.
+     * @return The request builder.
+     */
+    private HttpRequest.Builder request(URI uri) {
+        return HttpRequest.newBuilder(uri).timeout(HttpClients.DEFAULT_REQUEST_TIMEOUT);
+    }
+
     /**
      * Create request body publisher.
      *
@@ -317,7 +434,7 @@ public class PlainRequestFactory implements RequestFactory {
      */
     private HttpRequest.BodyPublisher createPublisher(Object payload) {
         try {
-            byte[] buf = mapper.writeValueAsBytes(payload);
+            byte[] buf = Json.bytes(payload);
             if (LOGGER.isLoggable(DEBUG)) {
                 LOGGER.log(DEBUG, "Request body: {}", new String(buf, StandardCharsets.UTF_8));
             }
@@ -343,21 +460,107 @@ public class PlainRequestFactory implements RequestFactory {
         if (params.getAccessToken() != null) {
             current = current.header("Authorization", "Bearer " + params.getAccessToken());
         }
+        if (compression) {
+            current = current.header(HttpHeaders.ACCEPT_ENCODING, ACCEPT_ENCODING);
+        }
         return current.setHeader(HttpHeaders.CONTENT_TYPE, contentType);
     }
 
+    /**
+     * Provides the response body decoded according to the content encoding. The body is decompressed as it is being read.
+     *
+     * @param response    The http response.
+     * @param transferred The response body which counts the transferred bytes.
+     * @return The decoded response body.
+     */
+    private InputStream body(HttpResponse<InputStream> response, InputStream transferred) {
+        var encoding = response.headers().firstValue(HttpHeaders.CONTENT_ENCODING).orElse("").trim().toLowerCase(Locale.ROOT);
+        try {
+            switch (encoding) {
+                case GZIP:
+                    return new GZIPInputStream(transferred, DECODER_BUFFER);
+                case DEFLATE:
+                    return new InflaterInputStream(transferred, new Inflater(), DECODER_BUFFER);
+                default:
+                    return transferred;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Close the response body which wasn't read because the request failed.
+     *
+     * @param body The response body.
+     */
+    private void close(InputStream body) {
+        try {
+            body.close();
+        } catch (IOException e) {
+            LOGGER.log(DEBUG, "Failed to close the response body.", e);
+        }
+    }
+
+    /**
+     * Invoke the GET request or join the identical request which is already in flight. The requests are identical if they
+     * have the same url and the same result type, so the joined request never gets the response read as the other class.
+     * The streamed responses and the media downloads aren't coalesced because their body can be read only once.
+     *
+     * @param routeMetrics The metrics of the api method.
+     * @param request      The http request.
+     * @param resultType   The result type (the response class or the generic type).
+     * @param extractor    The response extractor.
+     * @param <R>          The response class.
+     * @return The response promise.
+     */
+    @SuppressWarnings("unchecked")
+    private <R> CompletableFuture<R> coalesce(RouteMetrics routeMetrics, HttpRequest request, Object resultType,
+                                              Function<InputStream, R> extractor) {
+        var key = List.of(request.method(), request.uri(), resultType);
+        var result = new CompletableFuture<R>();
+        var existing = (CompletableFuture<R>) inFlight.putIfAbsent(key, result);
+        if (existing != null) {
+            coalescedRequests.incrementAndGet();
+            routeMetrics.coalesced();
+            LOGGER.log(DEBUG, "Coalesced request: {0} {1}", request.method(), request.uri());
+            return existing.copy();
+        }
+        invokeRequest(routeMetrics, request, extractor).whenComplete((response, throwable) -> {
+            inFlight.remove(key, result);
+            if (throwable != null) {
+                result.completeExceptionally(throwable);
+            } else {
+                result.complete(response);
+            }
+        });
+        return result.copy();
+    }
+
     /**
      * Invoke request.
      *
-     * @param request   The http request.
-     * @param extractor The response extractor.
-     * @param <R>       The response class.
+     * @param routeMetrics The metrics of the api method.
+     * @param request      The http request.
+     * @param extractor    The response extractor.
+     * @param <R>          The response class.
      * @return The response promise.
      */
-    private <R> CompletableFuture<R> invokeRequest(HttpRequest request, Function<byte[], R> extractor) {
-        var responseBodyHandler = HttpResponse.BodyHandlers.ofByteArray();
+    private <R> CompletableFuture<R> invokeRequest(RouteMetrics routeMetrics, HttpRequest request, Function<InputStream, R> extractor) {
+        var responseBodyHandler = HttpResponse.BodyHandlers.ofInputStream();
+        var endpoint = RateLimiter.Endpoint.of(request);
         var result = new CompletableFuture<R>();
-        invokeRequest(result, () -> httpClient.sendAsync(request, responseBodyHandler), extractor, 0);
+        Supplier<CompletableFuture<HttpResponse<InputStream>>> action = () -> {
+            if (!circuitBreaker.allow(request.timeout().map(Duration::toMillis).orElse(CircuitBreaker.DEFAULT_PROBE_TIMEOUT))) {
+                return CompletableFuture.failedFuture(new CircuitBreaker.OpenException(getHomeserverUrl()));
+            }
+            return rateLimiter.acquire(endpoint).thenCompose(permit -> {
+                request.bodyPublisher().ifPresent(publisher -> routeMetrics.sent(publisher.contentLength()));
+                return httpClient.sendAsync(request, responseBodyHandler);
+            });
+        };
+        var retries = retryPolicy.isRetryable(request, endpoint) ? retryPolicy.backoff() : null;
+        invokeRequest(result, action, extractor, routeMetrics, endpoint, retries, 0);
         return result;
     }
 
@@ -366,38 +569,74 @@ public class PlainRequestFactory implements RequestFactory {
      *
      * @param result    The response promise.
      * @param action    The action to invoke request.
-     * @param extractor The response extractor.
-     * @param delay     The delay of the current request.
-     * @param <R>       The response class.
+     * @param extractor    The response extractor.
+     * @param routeMetrics The metrics of the api method.
+     * @param endpoint     The endpoint class of the request.
+     * @param retries      The backoff of the transient failures or {@code null} if the request isn't retryable.
+     * @param delay        The delay of the current request.
+     * @param <R>          The response class.
      */
-    private <R> void invokeRequest(CompletableFuture<R> result, Supplier<CompletableFuture<HttpResponse<byte[]>>> action,
-                                   Function<byte[], R> extractor, long delay) {
-        action.get().thenAccept(response -> {
+    private <R> void invokeRequest(CompletableFuture<R> result, Supplier<CompletableFuture<HttpResponse<InputStream>>> action,
+                                   Function<InputStream, R> extractor, RouteMetrics routeMetrics, RateLimiter.Endpoint endpoint,
+                                   Backoff retries, long delay) {
+        var started = System.nanoTime();
+        action.get().whenCompleteAsync((response, throwable) -> {
+            if (throwable != null) {
+                routeMetrics.failure(System.nanoTime() - started);
+                if (RetryPolicy.isTransient(throwable)) {
+                    circuitBreaker.failure();
+                    if (retryPolicy.canRetry(retries)) {
+                        retry(result, action, extractor, routeMetrics, endpoint, retries, delay, throwable);
+                        return;
+                    }
+                } else if (!(throwable instanceof CircuitBreaker.OpenException)) {
+                    circuitBreaker.abort();
+                }
+                LOGGER.log(ERROR, "Failed to send request.", throwable);
+                result.completeExceptionally(throwable);
+                return;
+            }
+            var status = response.statusCode();
+            // the attempt is registered when its body is read to the end or closed.
+            var transferred = routeMetrics.received(status, started, response.body());
             try {
-                var status = response.statusCode();
                 LOGGER.log(DEBUG, "Response status: {}", status);
+                if (RetryPolicy.isTransient(status)) {
+                    circuitBreaker.failure();
+                    if (retryPolicy.canRetry(retries)) {
+                        transferred.close();
+                        retry(result, action, extractor, routeMetrics, endpoint, retries, delay, null);
+                        return;
+                    }
+                } else {
+                    circuitBreaker.success();
+                }
+                var body = body(response, transferred);
                 switch (status) {
                     case SUCCESS:
-                        success(result, response, extractor);
+                        rateLimiter.success(endpoint);
+                        success(result, body, extractor);
                         break;
 
                     case UNAUTHORIZED:
-                        unauthorized(result, response);
+                        unauthorized(result, body);
                         break;
 
                     case RATE_LIMITED:
-                        rateLimited(result, response, action, extractor, delay);
+                        rateLimited(result, body, action, extractor, routeMetrics, endpoint, retries, delay);
                         break;
 
                     default:
-                        error(result, response);
+                        error(result, body, status);
                 }
 
             } catch (Exception e) {
                 LOGGER.log(ERROR, "Unknown exception.", e);
+                close(transferred);
                 result.completeExceptionally(e);
             } catch (Throwable e) {
                 LOGGER.log(ERROR, "Throwable!", e);
+                close(transferred);
                 result.completeExceptionally(e);
             }
 
@@ -406,26 +645,47 @@ public class PlainRequestFactory implements RequestFactory {
                 LOGGER.log(DEBUG, "Cancelled: {}", result.isCancelled());
                 LOGGER.log(DEBUG, "Exception: {}", result.isCompletedExceptionally());
             }
-        });
+        }, BODY_READERS);
+    }
+
+    private <R> void retry(CompletableFuture<R> result,
+                           Supplier<CompletableFuture<HttpResponse<InputStream>>> action,
+                           Function<InputStream, R> extractor,
+                           RouteMetrics routeMetrics,
+                           RateLimiter.Endpoint endpoint,
+                           Backoff retries,
+                           long delay,
+                           Throwable throwable) {
+        var retryDelay = retries.next();
+        routeMetrics.retry();
+        LOGGER.log(WARNING, "Transient failure, retry {0} in {1} ms.", retries.getAttempts(), retryDelay);
+        if (throwable != null) {
+            LOGGER.log(DEBUG, "Transient failure.", throwable);
+        }
+        CompletableFuture.delayedExecutor(retryDelay, TimeUnit.MILLISECONDS)
+            .execute(() -> invokeRequest(result, action, extractor, routeMetrics, endpoint, retries, delay));
     }
 
-    private <R> void success(CompletableFuture<R> result, HttpResponse<byte[]> response, Function<byte[], R> extractor) {
+    private <R> void success(CompletableFuture<R> result, InputStream body, Function<InputStream, R> extractor) {
         LOGGER.log(DEBUG, "Success.");
-        result.complete(extractor.apply(response.body()));
+        result.complete(extractor.apply(body));
     }
 
-    private <R> void unauthorized(CompletableFuture<R> result, HttpResponse<byte[]> response) {
+    private <R> void unauthorized(CompletableFuture<R> result, InputStream body) {
         LOGGER.log(DEBUG, "Authentication required.");
-        result.completeExceptionally(new AuthenticationRequred(extractor(AuthenticationFlows.class).apply(response.body())));
+        result.completeExceptionally(new AuthenticationRequred(extractor(AuthenticationFlows.class).apply(body)));
     }
 
     private <R> void rateLimited(CompletableFuture<R> result,
-                                 HttpResponse<byte[]> response,
-                                 Supplier<CompletableFuture<HttpResponse<byte[]>>> action,
-                                 Function<byte[], R> extractor,
+                                 InputStream body,
+                                 Supplier<CompletableFuture<HttpResponse<InputStream>>> action,
+                                 Function<InputStream, R> extractor,
+                                 RouteMetrics routeMetrics,
+                                 RateLimiter.Endpoint endpoint,
+                                 Backoff retries,
                                  long delay) {
         LOGGER.log(WARNING, "Rate limited.");
-        var rateLimited = extractor(RateLimitedErrorResponse.class).apply(response.body());
+        var rateLimited = extractor(RateLimitedErrorResponse.class).apply(body);
 
         if (LOGGER.isLoggable(DEBUG)) {
             LOGGER.log(DEBUG, "Retry after milliseconds: {}", rateLimited.getRetryAfterMs());
@@ -433,29 +693,35 @@ public class PlainRequestFactory implements RequestFactory {
             LOGGER.log(DEBUG, "Error: {}", rateLimited.getError());
         }
 
-        var newDelay = rateLimited.getRetryAfterMs() != null ? rateLimited.getRetryAfterMs() : delay * DELAY_FACTOR;
+        long newDelay;
+        if (rateLimited.getRetryAfterMs() != null) {
+            newDelay = rateLimited.getRetryAfterMs();
+        } else {
+            newDelay = delay > 0 ? delay * DELAY_FACTOR : INITIAL_RATE_LIMITED_DELAY;
+        }
 
-        if (delay > MAX_DELAY) {
+        if (newDelay > MAX_DELAY) {
             LOGGER.log(ERROR, "Cannot send request, maximum delay was reached.");
             result.completeExceptionally(
                 new RateLimitedException(rateLimited.getErrcode(), rateLimited.getError(), rateLimited.getRetryAfterMs()));
         } else {
-            LOGGER.log(ERROR, "Sleep milliseconds: {}", delay);
-            CompletableFuture.delayedExecutor(newDelay, TimeUnit.MILLISECONDS)
-                .execute(() -> invokeRequest(result, action, extractor, newDelay));
+            LOGGER.log(WARNING, "Sleep milliseconds: {}", newDelay);
+            // the limiter holds back the retry and the other requests of the same endpoint class for the delay.
+            rateLimiter.rateLimited(endpoint, newDelay);
+            routeMetrics.retry();
+            invokeRequest(result, action, extractor, routeMetrics, endpoint, retries, newDelay);
         }
     }
 
-    private <R> void error(CompletableFuture<R> result, HttpResponse<byte[]> response) {
+    private <R> void error(CompletableFuture<R> result, InputStream body, int status) {
         LOGGER.log(DEBUG, "Error.");
-        var error = extractor(ErrorResponse.class).apply(response.body());
+        var error = extractor(ErrorResponse.class).apply(body);
 
         if (LOGGER.isLoggable(DEBUG)) {
             LOGGER.log(DEBUG, "Errcode: {}", error.getErrcode());
             LOGGER.log(DEBUG, "Error: {}", error.getError());
         }
 
-        var status = response.statusCode();
         if (error == null) {
             result.completeExceptionally(
                 new MatrixException(MatrixException.M_INTERNAL, "Missing error response.", status));
@@ -0,0 +1,231 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import java.net.http.HttpRequest;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side rate limiter of the homeserver. Every endpoint class has its own token bucket, so the bulk requests (media,
+ * history) don't delay the interactive ones (sending messages). The requests over the limit wait in the order of arrival
+ * instead of being rejected by the homeserver. When the homeserver rejects the request anyway, the bucket is paused for
+ * the {@code retry_after_ms} period and its rate is halved, then the rate recovers with every successful request.
+ */
+public final class RateLimiter {
+
+    private static final Map<String, RateLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    private static final double MILLIS_PER_SECOND = 1000D;
+    private static final double RECOVERY_STEP = 0.1D;
+    private static final double MIN_RATE_FACTOR = 0.1D;
+
+    /**
+     * Endpoint classes with their default rates.
+     */
+    public enum Endpoint {
+        /**
+         * Sync requests.
+         */
+        SYNC(2D, 4),
+
+        /**
+         * Sending the events (messages, state, redactions).
+         */
+        SEND(5D, 10),
+
+        /**
+         * Media downloads and uploads.
+         */
+        MEDIA(10D, 20),
+
+        /**
+         * Key queries, claims and uploads.
+         */
+        KEYS(2D, 5),
+
+        /**
+         * Other requests (history, profiles, etc.).
+         */
+        OTHER(10D, 20);
+
+        private final double rate;
+        private final int burst;
+
+        Endpoint(double rate, int burst) {
+            this.rate = rate;
+            this.burst = burst;
+        }
+
+        /**
+         * Classify the request.
+         *
+         * @param request the http request.
+         * @return the endpoint class.
+         */
+        public static Endpoint of(HttpRequest request) {
+            var path = request.uri().getPath();
+            if (path == null) {
+                return OTHER;
+            }
+            if (path.startsWith("/_matrix/media/")) {
+                return MEDIA;
+            }
+            if (path.endsWith("/sync")) {
+                return SYNC;
+            }
+            if (path.contains("/keys/")) {
+                return KEYS;
+            }
+            if (path.contains("/send/") || path.contains("/state/") || path.contains("/redact/")) {
+                return SEND;
+            }
+            return OTHER;
+        }
+    }
+
+    private final Map<Endpoint, Bucket> buckets = new EnumMap<>(Endpoint.class);
+
+    private RateLimiter() {
+        for (Endpoint endpoint : Endpoint.values()) {
+            buckets.put(endpoint, new Bucket(endpoint.rate, endpoint.burst));
+        }
+    }
+
+    /**
+     * Provides the rate limiter of the homeserver.
+     *
+     * @param homeserverUrl the homeserver url.
+     * @return the shared rate limiter.
+     */
+    public static RateLimiter get(String homeserverUrl) {
+        return LIMITERS.computeIfAbsent(homeserverUrl.trim().toLowerCase(Locale.ROOT), key -> new RateLimiter());
+    }
+
+    /**
+     * Acquire the permit to send the request.
+     *
+     * @param endpoint the endpoint class.
+     * @return the promise which completes when the request can be sent.
+     */
+    public CompletableFuture<Void> acquire(Endpoint endpoint) {
+        var bucket = buckets.get(endpoint);
+        var result = new CompletableFuture<Void>();
+        await(bucket, result, bucket.reserve());
+        return result;
+    }
+
+    /**
+     * Register the successful response.
+     *
+     * @param endpoint the endpoint class.
+     */
+    public void success(Endpoint endpoint) {
+        buckets.get(endpoint).recover();
+    }
+
+    /**
+     * Register the rejected request.
+     *
+     * @param endpoint     the endpoint class.
+     * @param retryAfterMs the period provided by the homeserver in milliseconds.
+     */
+    public void rateLimited(Endpoint endpoint, long retryAfterMs) {
+        buckets.get(endpoint).pause(retryAfterMs);
+    }
+
+    /**
+     * Provides the count of the requests waiting for the permit.
+     *
+     * @param endpoint the endpoint class.
+     * @return the count of the waiting requests.
+     */
+    public int getWaiting(Endpoint endpoint) {
+        return buckets.get(endpoint).getWaiting();
+    }
+
+    private void await(Bucket bucket, CompletableFuture<Void> result, long delay) {
+        if (delay <= 0) {
+            bucket.release();
+            result.complete(null);
+        } else {
+            // the bucket can be paused while the request waits, so the pause is checked again before sending.
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> await(bucket, result, bucket.paused()));
+        }
+    }
+
+    private static final class Bucket {
+
+        private final double maxRate;
+        private final int burst;
+        private double rate;
+        private double tokens;
+        private long refilled = System.nanoTime();
+        private long pausedUntil;
+        private int waiting;
+
+        private Bucket(double rate, int burst) {
+            this.maxRate = rate;
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = burst;
+            this.pausedUntil = refilled;
+        }
+
+        /**
+         * Take the token. The tokens can be borrowed, in that case the request waits until the borrowed tokens are refilled,
+         * so the waiting requests keep their order.
+         *
+         * @return the delay before the request in milliseconds.
+         */
+        private synchronized long reserve() {
+            var now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilled) / (double) TimeUnit.SECONDS.toNanos(1) * rate);
+            refilled = now;
+            tokens -= 1D;
+            waiting++;
+            var delay = tokens < 0 ? (long) Math.ceil(-tokens / rate * MILLIS_PER_SECOND) : 0L;
+            return Math.max(delay, TimeUnit.NANOSECONDS.toMillis(pausedUntil - now));
+        }
+
+        private synchronized long paused() {
+            return TimeUnit.NANOSECONDS.toMillis(pausedUntil - System.nanoTime());
+        }
+
+        private synchronized void release() {
+            waiting--;
+        }
+
+        private synchronized int getWaiting() {
+            return waiting;
+        }
+
+        private synchronized void pause(long retryAfterMs) {
+            pausedUntil = Math.max(pausedUntil, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfterMs));
+            rate = Math.max(maxRate * MIN_RATE_FACTOR, rate / 2);
+            tokens = Math.min(tokens, 0D);
+        }
+
+        private synchronized void recover() {
+            rate = Math.min(maxRate, rate + maxRate * RECOVERY_STEP);
+        }
+    }
+}
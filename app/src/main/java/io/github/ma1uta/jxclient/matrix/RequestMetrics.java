@@ -0,0 +1,133 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import static java.lang.System.Logger.Level.ERROR;
+import static java.lang.System.Logger.Level.INFO;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Request metrics of the homeserver. Every api route ({@code Class#method}) has its own {@link RouteMetrics}, which are
+ * registered as the platform MBeans {@code io.github.ma1uta.jxclient:type=RequestMetrics,homeserver=...,route=...}.
+ * The metrics of all homeservers can be written to the log periodically, the period in seconds is set by the
+ * {@code jxclient.metrics.dump} system property (disabled by default).
+ */
+public final class RequestMetrics {
+
+    private static final System.Logger LOGGER = System.getLogger("REQUEST_METRICS");
+
+    /**
+     * The system property with the period of the metrics dump in seconds.
+     */
+    public static final String DUMP_PERIOD_PROPERTY = "jxclient.metrics.dump";
+
+    private static final String DOMAIN = "io.github.ma1uta.jxclient";
+
+    private static final Map<String, RequestMetrics> METRICS = new ConcurrentHashMap<>();
+
+    static {
+        startDump(Long.getLong(DUMP_PERIOD_PROPERTY, 0L));
+    }
+
+    private final String homeserver;
+    private final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+
+    private RequestMetrics(String homeserver) {
+        this.homeserver = homeserver;
+    }
+
+    /**
+     * Provides the request metrics of the homeserver.
+     *
+     * @param homeserverUrl the homeserver url.
+     * @return the shared metrics.
+     */
+    public static RequestMetrics get(String homeserverUrl) {
+        return METRICS.computeIfAbsent(homeserverUrl.trim().toLowerCase(Locale.ROOT), RequestMetrics::new);
+    }
+
+    /**
+     * Provides the route name of the api method.
+     *
+     * @param apiClass  the api class.
+     * @param apiMethod the api method.
+     * @return the route name.
+     */
+    public static String route(Class<?> apiClass, String apiMethod) {
+        return apiClass.getSimpleName() + "#" + apiMethod;
+    }
+
+    /**
+     * Provides the metrics of the route, the metrics are created and registered on the first request.
+     *
+     * @param route the route name.
+     * @return the route metrics.
+     */
+    public RouteMetrics route(String route) {
+        return routes.computeIfAbsent(route, this::register);
+    }
+
+    public Collection<RouteMetrics> getRoutes() {
+        return Collections.unmodifiableCollection(routes.values());
+    }
+
+    private RouteMetrics register(String route) {
+        var metrics = new RouteMetrics(route);
+        try {
+            var name = new ObjectName(DOMAIN + ":type=RequestMetrics,homeserver=" + ObjectName.quote(homeserver)
+                + ",route=" + ObjectName.quote(route));
+            var server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(metrics, name);
+            }
+        } catch (JMException e) {
+            LOGGER.log(ERROR, "Failed to register the request metrics.", e);
+        }
+        return metrics;
+    }
+
+    private static void startDump(long period) {
+        if (period <= 0) {
+            return;
+        }
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "request-metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(RequestMetrics::dump, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Write the metrics of all homeservers to the log.
+     */
+    public static void dump() {
+        METRICS.values().forEach(metrics -> metrics.routes.values()
+            .forEach(route -> LOGGER.log(INFO, "{0} {1}", metrics.homeserver, route)));
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpTimeoutException;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Retry policy of the transient failures: the lost connections, the timeouts and the server errors. Only the idempotent
+ * requests are retried: GET, DELETE and the PUT requests with the transaction id (the sent events, the redactions and the
+ * to-device messages, the homeserver deduplicates them by the transaction id). The other PUT and POST requests aren't
+ * retried because the homeserver could have already processed them. Sync requests aren't retried either, the sync driver
+ * has its own backoff.
+ */
+public class RetryPolicy {
+
+    /**
+     * Default count of the attempts including the first one.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /**
+     * Default delay before the first retry in milliseconds.
+     */
+    public static final long DEFAULT_INITIAL_DELAY = 500L;
+
+    /**
+     * Default maximum delay between the retries in milliseconds.
+     */
+    public static final long DEFAULT_MAX_DELAY = 10_000L;
+
+    /**
+     * Default policy.
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY);
+
+    private static final Set<String> IDEMPOTENT_METHODS = Set.of("GET", "DELETE");
+
+    private static final String PUT = "PUT";
+
+    /**
+     * The paths ending with the transaction id: {@code /rooms/{roomId}/send/{eventType}/{txnId}},
+     * {@code /rooms/{roomId}/redact/{eventId}/{txnId}} and {@code /sendToDevice/{eventType}/{txnId}}.
+     */
+    private static final Pattern TRANSACTION_PATH = Pattern.compile(".*/(send|redact|sendToDevice)/[^/]+/[^/]+/?$");
+
+    private static final int SERVER_ERROR = 500;
+
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+
+    /**
+     * Create a new policy.
+     *
+     * @param maxAttempts  the count of the attempts including the first one.
+     * @param initialDelay the delay before the first retry in milliseconds.
+     * @param maxDelay     the maximum delay between the retries in milliseconds.
+     */
+    public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Check that the request can be retried.
+     *
+     * @param request  the http request.
+     * @param endpoint the endpoint class of the request.
+     * @return {@code true} if the request is idempotent and can be retried.
+     */
+    public boolean isRetryable(HttpRequest request, RateLimiter.Endpoint endpoint) {
+        if (maxAttempts <= 1 || endpoint == RateLimiter.Endpoint.SYNC) {
+            return false;
+        }
+        if (PUT.equals(request.method())) {
+            return TRANSACTION_PATH.matcher(request.uri().getRawPath()).matches();
+        }
+        return IDEMPOTENT_METHODS.contains(request.method());
+    }
+
+    /**
+     * Check that the response status is the transient failure.
+     *
+     * @param status the response status.
+     * @return {@code true} if the request can succeed later.
+     */
+    public static boolean isTransient(int status) {
+        return status >= SERVER_ERROR;
+    }
+
+    /**
+     * Check that the failure is transient.
+     *
+     * @param throwable the failure.
+     * @return {@code true} if the request can succeed later.
+     */
+    public static boolean isTransient(Throwable throwable) {
+        if (Backoff.isConnectivityLoss(throwable)) {
+            return true;
+        }
+        for (var current = throwable; current != null; current = current.getCause()) {
+            if (current instanceof HttpTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Provides the backoff of the new request.
+     *
+     * @return the backoff which counts the failed attempts of the request.
+     */
+    public Backoff backoff() {
+        return new Backoff(initialDelay, maxDelay);
+    }
+
+    /**
+     * Check that the failed request can be retried once more.
+     *
+     * @param backoff the backoff of the request.
+     * @return {@code true} if the attempts aren't exhausted.
+     */
+    public boolean canRetry(Backoff backoff) {
+        return backoff != null && backoff.getAttempts() + 1 < maxAttempts;
+    }
+}
@@ -23,6 +23,7 @@ import javafx.fxml.FXMLLoader;
 import javafx.scene.Node;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.ResourceBundle;
 import java.util.function.Consumer;
 
@@ -32,6 +33,8 @@ import java.util.function.Consumer;
 public class Room {
 
     private String roomId;
+    private final RoomState state = new RoomState();
+    private final RoomTimeline timeline = new RoomTimeline();
     private final ResourceBundle i18n;
     private final Consumer<Room> selectAction;
 
@@ -74,6 +77,9 @@ public class Room {
             FXMLLoader roomLoader = new FXMLLoader(Room.class.getResource("/io/github/ma1uta/jxclient/ui/matrix/JoinedRoom.fxml"), i18n);
             roomView = roomLoader.load();
             roomViewController = roomLoader.getController();
+            roomViewController.setAccount(account);
+            roomViewController.setGapHandler(gap -> fillGap(gap, account));
+            roomViewController.setRefreshHandler(() -> roomViewController.reset(timeline.getEntries(), account));
 
             updateRoom(joinedRoom, account);
         } catch (IOException e) {
@@ -82,14 +88,48 @@ public class Room {
     }
 
     protected void updateRoom(JoinedRoom joinedRoom, MatrixAccount account) {
-        roomItemViewController.parse(joinedRoom, account);
-        roomViewController.parse(joinedRoom, account);
+        var changes = state.apply(joinedRoom);
+        if (!changes.isEmpty()) {
+            roomItemViewController.update(state, changes, account);
+        }
+        List<RoomTimeline.Entry> entries = timeline.append(joinedRoom.getTimeline());
+        if (!entries.isEmpty()) {
+            roomViewController.append(entries, account);
+        }
+    }
+
+    /**
+     * Load the events skipped by the limited sync.
+     *
+     * @param gap     the gap to fill.
+     * @param account the account.
+     */
+    protected void fillGap(RoomTimeline.Entry gap, MatrixAccount account) {
+        account.getBackfiller().messages(getRoomId(), gap.getFrom()).whenComplete((page, throwable) -> {
+            if (throwable != null) {
+                System.getLogger("ROOM-" + getRoomId()).log(System.Logger.Level.ERROR, "Failed to load the room history.", throwable);
+                roomViewController.gapFailed(gap, account);
+                return;
+            }
+            var replacement = timeline.fill(gap, page.getChunk(), page.getEnd());
+            if (replacement != null) {
+                roomViewController.replaceGap(gap, replacement, account);
+            }
+        });
     }
 
     public String getRoomId() {
         return roomId;
     }
 
+    public RoomState getState() {
+        return state;
+    }
+
+    public RoomTimeline getTimeline() {
+        return timeline;
+    }
+
     public void setRoomId(String roomId) {
         this.roomId = roomId;
     }
@@ -0,0 +1,107 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
+import io.github.ma1uta.matrix.event.Event;
+import io.github.ma1uta.matrix.event.RoomAvatar;
+import io.github.ma1uta.matrix.event.RoomName;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Current values of the room state fields rendered by the client. Applying the sync data returns the set of the changed
+ * fields, so only the changes produce UI work.
+ */
+public class RoomState {
+
+    /**
+     * Tracked room state fields.
+     */
+    public enum Field {
+        /**
+         * The room name ({@code m.room.name}).
+         */
+        NAME,
+
+        /**
+         * The room avatar url ({@code m.room.avatar}).
+         */
+        AVATAR
+    }
+
+    private volatile String name;
+    private volatile String avatarUrl;
+
+    public String getName() {
+        return name;
+    }
+
+    public String getAvatarUrl() {
+        return avatarUrl;
+    }
+
+    /**
+     * Apply the state events of the joined room. The state events from both state and timeline sections are applied, the
+     * last one wins.
+     *
+     * @param joinedRoom the sync data of the joined room.
+     * @return the changed fields.
+     */
+    public Set<Field> apply(JoinedRoom joinedRoom) {
+        var newName = name;
+        var newAvatarUrl = avatarUrl;
+        for (Event event : events(joinedRoom)) {
+            if (event instanceof RoomName) {
+                newName = ((RoomName) event).getContent().getName();
+            } else if (event instanceof RoomAvatar) {
+                newAvatarUrl = ((RoomAvatar) event).getContent().getUrl();
+            }
+        }
+
+        var changes = EnumSet.noneOf(Field.class);
+        if (!Objects.equals(name, newName)) {
+            name = newName;
+            changes.add(Field.NAME);
+        }
+        if (!Objects.equals(avatarUrl, newAvatarUrl)) {
+            avatarUrl = newAvatarUrl;
+            changes.add(Field.AVATAR);
+        }
+        return changes;
+    }
+
+    private Iterable<Event> events(JoinedRoom joinedRoom) {
+        List<Event> stateEvents = joinedRoom.getState() != null ? joinedRoom.getState().getEvents() : null;
+        List<Event> timelineEvents = joinedRoom.getTimeline() != null ? joinedRoom.getTimeline().getEvents() : null;
+        if (stateEvents == null) {
+            return timelineEvents != null ? timelineEvents : Collections.emptyList();
+        }
+        if (timelineEvents == null) {
+            return stateEvents;
+        }
+        var events = new ArrayList<Event>(stateEvents.size() + timelineEvents.size());
+        events.addAll(stateEvents);
+        events.addAll(timelineEvents);
+        return events;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import io.github.ma1uta.jxclient.ui.matrix.message.MessageLoader;
+import io.github.ma1uta.matrix.client.model.sync.Timeline;
+import io.github.ma1uta.matrix.event.Event;
+import io.github.ma1uta.matrix.event.RoomMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Room timeline with gaps. When the sync returns the limited timeline the events between the last known event and the first
+ * returned one are skipped, so the gap with the {@code prev_batch} token is inserted before the returned events. The gap
+ * is filled later with the events loaded through the room messages API.
+ */
+public class RoomTimeline {
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final Set<String> eventIds = new HashSet<>();
+
+    /**
+     * Provides the snapshot of the timeline entries.
+     *
+     * @return the timeline entries from the oldest to the newest.
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    /**
+     * Append the sync timeline.
+     *
+     * @param timeline the timeline of the joined room.
+     * @return the appended entries.
+     */
+    public synchronized List<Entry> append(Timeline timeline) {
+        if (timeline == null) {
+            return Collections.emptyList();
+        }
+        var added = new ArrayList<Entry>();
+        if (Boolean.TRUE.equals(timeline.getLimited()) && timeline.getPrevBatch() != null) {
+            added.add(Entry.gap(timeline.getPrevBatch()));
+        }
+        if (timeline.getEvents() != null) {
+            for (Event event : timeline.getEvents()) {
+                if (isShown(event) && eventIds.add(((RoomMessage<?>) event).getEventId())) {
+                    added.add(Entry.event((RoomMessage<?>) event));
+                }
+            }
+        }
+        entries.addAll(added);
+        return added;
+    }
+
+    /**
+     * Fill the gap with the loaded events.
+     *
+     * @param gap   the gap to fill.
+     * @param chunk the loaded events in the reverse-chronological order.
+     * @param end   the token to continue loading or {@code null} if there are no more events.
+     * @return the entries which replace the gap or {@code null} if the gap has already been filled. The new gap is the first
+     *     entry if the gap isn't closed yet.
+     */
+    public synchronized List<Entry> fill(Entry gap, List<Event> chunk, String end) {
+        var index = entries.indexOf(gap);
+        if (index < 0) {
+            return null;
+        }
+        var replacement = new ArrayList<Entry>();
+        var closed = chunk == null || chunk.isEmpty() || end == null;
+        if (chunk != null) {
+            for (Event event : chunk) {
+                if (isShown(event)) {
+                    var roomMessage = (RoomMessage<?>) event;
+                    if (!eventIds.add(roomMessage.getEventId())) {
+                        closed = true;
+                        break;
+                    }
+                    replacement.add(0, Entry.event(roomMessage));
+                }
+            }
+        }
+        if (!closed) {
+            replacement.add(0, Entry.gap(end));
+        }
+        entries.remove(index);
+        entries.addAll(index, replacement);
+        return replacement;
+    }
+
+    /**
+     * Check whether the event can be shown. The redacted messages lose their content and the messages of the unknown types
+     * have no view, so both are skipped instead of the blank rows.
+     *
+     * @param event the event.
+     * @return {@code true} if the event is the room message with the supported message type.
+     */
+    private static boolean isShown(Event event) {
+        if (!(event instanceof RoomMessage)) {
+            return false;
+        }
+        var content = ((RoomMessage<?>) event).getContent();
+        return content != null && MessageLoader.isSupported(content.getMsgtype());
+    }
+
+    /**
+     * Timeline entry: either the room message or the gap.
+     */
+    public static final class Entry {
+
+        private final RoomMessage<?> event;
+        private final String from;
+
+        private Entry(RoomMessage<?> event, String from) {
+            this.event = event;
+            this.from = from;
+        }
+
+        /**
+         * Create the message entry.
+         *
+         * @param event the room message.
+         * @return the timeline entry.
+         */
+        public static Entry event(RoomMessage<?> event) {
+            return new Entry(event, null);
+        }
+
+        /**
+         * Create the gap entry.
+         *
+         * @param from the token to load the skipped events.
+         * @return the timeline entry.
+         */
+        public static Entry gap(String from) {
+            return new Entry(null, from);
+        }
+
+        public boolean isGap() {
+            return event == null;
+        }
+
+        public RoomMessage<?> getEvent() {
+            return event;
+        }
+
+        public String getFrom() {
+            return from;
+        }
+    }
+}
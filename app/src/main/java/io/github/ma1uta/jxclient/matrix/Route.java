@@ -0,0 +1,156 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import io.github.ma1uta.matrix.Secured;
+import io.github.ma1uta.matrix.client.RequestParams;
+
+import java.lang.reflect.Method;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.Path;
+
+/**
+ * Compiled route of the api method. The {@link Path} templates of the api class and the method are parsed once into
+ * the literal segments and the path parameter slots, so building the request url is a single pass without reflection.
+ * The routes of the api class are compiled on the first request to any of its methods.
+ */
+public final class Route {
+
+    private static final ClassValue<Map<String, Route>> ROUTES = new ClassValue<>() {
+        @Override
+        protected Map<String, Route> computeValue(Class<?> apiClass) {
+            return compile(apiClass);
+        }
+    };
+
+    private static final int QUERY_CAPACITY = 64;
+
+    private final String[] literals;
+    private final String[] params;
+    private final boolean secured;
+    private final int length;
+
+    private Route(String[] literals, String[] params, boolean secured) {
+        this.literals = literals;
+        this.params = params;
+        this.secured = secured;
+        var literalLength = 0;
+        for (String literal : literals) {
+            literalLength += literal.length();
+        }
+        this.length = literalLength;
+    }
+
+    /**
+     * Provides the compiled route of the api method.
+     *
+     * @param apiClass  the api class.
+     * @param apiMethod the api method.
+     * @return the route.
+     * @throws IllegalArgumentException if the api class doesn't contain the method.
+     */
+    public static Route of(Class<?> apiClass, String apiMethod) {
+        var route = ROUTES.get(apiClass).get(apiMethod);
+        if (route == null) {
+            throw new IllegalArgumentException(String.format("Cannot find the method %s in the class %s", apiMethod, apiClass.getName()));
+        }
+        return route;
+    }
+
+    private static Map<String, Route> compile(Class<?> apiClass) {
+        var classPath = apiClass.getAnnotation(Path.class);
+        var prefix = classPath != null ? classPath.value() : "";
+        Method[] methods = AccessController.doPrivileged((PrivilegedAction<Method[]>) apiClass::getDeclaredMethods);
+        var routes = new HashMap<String, Route>();
+        for (Method method : methods) {
+            var methodPath = method.getAnnotation(Path.class);
+            if (methodPath != null && !routes.containsKey(method.getName())) {
+                routes.put(method.getName(), parse(prefix + methodPath.value(), method.getAnnotation(Secured.class) != null));
+            }
+        }
+        return Collections.unmodifiableMap(routes);
+    }
+
+    private static Route parse(String template, boolean secured) {
+        List<String> literals = new ArrayList<>();
+        List<String> params = new ArrayList<>();
+        var position = 0;
+        var open = template.indexOf('{');
+        while (open >= 0) {
+            var close = template.indexOf('}', open);
+            if (close < 0) {
+                break;
+            }
+            literals.add(template.substring(position, open));
+            var param = template.substring(open + 1, close);
+            var regex = param.indexOf(':');
+            params.add((regex >= 0 ? param.substring(0, regex) : param).trim());
+            position = close + 1;
+            open = template.indexOf('{', position);
+        }
+        literals.add(template.substring(position));
+        return new Route(literals.toArray(new String[0]), params.toArray(new String[0]), secured);
+    }
+
+    /**
+     * Check that the method requires the access token.
+     *
+     * @return {@code true} if the method is secured.
+     */
+    public boolean isSecured() {
+        return secured;
+    }
+
+    /**
+     * Build the request url.
+     *
+     * @param baseUrl       the homeserver url with the schema.
+     * @param requestParams the request parameters.
+     * @return the request url.
+     * @throws IllegalArgumentException if the path parameter is missing.
+     */
+    public String url(String baseUrl, RequestParams requestParams) {
+        var pathParams = requestParams.getPathParams();
+        var queryParams = requestParams.getQueryParams();
+        var builder = new StringBuilder(baseUrl.length() + length + QUERY_CAPACITY * (params.length + queryParams.size()));
+        builder.append(baseUrl);
+        for (int i = 0; i < params.length; i++) {
+            builder.append(literals[i]);
+            var value = pathParams.get(params[i]);
+            if (value == null) {
+                throw new IllegalArgumentException(String.format("Missing the path parameter: %s", params[i]));
+            }
+            builder.append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+        }
+        builder.append(literals[params.length]);
+
+        var separator = '?';
+        for (Map.Entry<String, String> parameterEntry : queryParams.entrySet()) {
+            builder.append(separator).append(parameterEntry.getKey()).append('=').append(parameterEntry.getValue());
+            separator = '&';
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the api route. The latency of every attempt is recorded to the histogram with the fixed buckets, so the
+ * recording is lock-free and the memory doesn't grow with the count of the requests. The latency of the attempt with the
+ * response lasts until its body is read to the end or closed, so it includes the body transfer (and for the streamed
+ * responses like the sync, the decoding which reads the body as it arrives).
+ *
+ * <p>These metrics are the only measure of the request overhead: there is no benchmark of the url building of the compiled
+ * routes ({@link Route}) against the former reflective one.</p>
+ */
+public class RouteMetrics implements RouteMetricsMXBean {
+
+    /**
+     * Upper bounds of the latency buckets in milliseconds. The last bucket holds the slower requests (the long-polling
+     * sync requests take up to the sync timeout).
+     */
+    private static final long[] BOUNDS = {5, 10, 25, 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 30_000, 60_000};
+
+    private static final double P50 = 0.5D;
+    private static final double P95 = 0.95D;
+    private static final double P99 = 0.99D;
+
+    private final String route;
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final LongAdder totalLatency = new LongAdder();
+    private final AtomicLong maxLatency = new AtomicLong();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+    /**
+     * Create new metrics.
+     *
+     * @param route the route name.
+     */
+    public RouteMetrics(String route) {
+        this.route = route;
+    }
+
+    /**
+     * Register the attempt with the response.
+     *
+     * @param status       the response status.
+     * @param elapsedNanos the latency of the attempt in nanoseconds.
+     */
+    public void response(int status, long elapsedNanos) {
+        statuses.computeIfAbsent(status, key -> new LongAdder()).increment();
+        latency(elapsedNanos);
+    }
+
+    /**
+     * Register the attempt which failed without the response.
+     *
+     * @param elapsedNanos the latency of the attempt in nanoseconds.
+     */
+    public void failure(long elapsedNanos) {
+        failures.increment();
+        latency(elapsedNanos);
+    }
+
+    /**
+     * Register the repeated attempt.
+     */
+    public void retry() {
+        retries.increment();
+    }
+
+    /**
+     * Register the request which joined the identical request in flight instead of being sent.
+     */
+    public void coalesced() {
+        coalesced.increment();
+    }
+
+    /**
+     * Register the request body.
+     *
+     * @param bytes the size of the request body.
+     */
+    public void sent(long bytes) {
+        if (bytes > 0) {
+            bytesSent.add(bytes);
+        }
+    }
+
+    /**
+     * Count the bytes of the response body as they are being read and register the attempt with the response when the body
+     * is read to the end or closed.
+     *
+     * @param status  the response status.
+     * @param started the start time of the attempt ({@link System#nanoTime()}).
+     * @param body    the response body.
+     * @return the counting body.
+     */
+    public InputStream received(int status, long started, InputStream body) {
+        var completed = new AtomicBoolean();
+        Runnable complete = () -> {
+            if (completed.compareAndSet(false, true)) {
+                response(status, System.nanoTime() - started);
+            }
+        };
+        return new FilterInputStream(body) {
+            @Override
+            public int read() throws IOException {
+                var value = super.read();
+                if (value >= 0) {
+                    bytesReceived.increment();
+                } else {
+                    complete.run();
+                }
+                return value;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                var read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    bytesReceived.add(read);
+                } else if (read < 0) {
+                    complete.run();
+                }
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    complete.run();
+                }
+            }
+        };
+    }
+
+    private void latency(long elapsedNanos) {
+        var millis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        var bucket = 0;
+        while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        totalLatency.add(millis);
+        maxLatency.accumulateAndGet(millis, Math::max);
+        requests.increment();
+    }
+
+    @Override
+    public String getRoute() {
+        return route;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public Map<Integer, Long> getStatusCounts() {
+        var counts = new TreeMap<Integer, Long>();
+        statuses.forEach((status, count) -> counts.put(status, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public Map<Long, Long> getLatencyHistogram() {
+        var histogram = new TreeMap<Long, Long>();
+        for (int i = 0; i < BOUNDS.length; i++) {
+            histogram.put(BOUNDS[i], buckets.get(i));
+        }
+        histogram.put(Long.MAX_VALUE, buckets.get(BOUNDS.length));
+        return histogram;
+    }
+
+    @Override
+    public double getMeanLatency() {
+        var count = requests.sum();
+        return count > 0 ? totalLatency.sum() / (double) count : 0D;
+    }
+
+    @Override
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    @Override
+    public long getLatencyP50() {
+        return percentile(P50);
+    }
+
+    @Override
+    public long getLatencyP95() {
+        return percentile(P95);
+    }
+
+    @Override
+    public long getLatencyP99() {
+        return percentile(P99);
+    }
+
+    private long percentile(double quantile) {
+        var counts = new long[buckets.length()];
+        var total = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0L;
+        }
+        var rank = (long) Math.ceil(total * quantile);
+        var cumulative = 0L;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= rank) {
+                return Math.min(BOUNDS[i], maxLatency.get());
+            }
+        }
+        return maxLatency.get();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0L);
+        }
+        totalLatency.reset();
+        maxLatency.set(0L);
+        requests.reset();
+        failures.reset();
+        retries.reset();
+        coalesced.reset();
+        bytesSent.reset();
+        bytesReceived.reset();
+        statuses.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: requests=%d, failures=%d, retries=%d, coalesced=%d, p50=%dms, p95=%dms, p99=%dms, max=%dms, sent=%d, "
+            + "received=%d, statuses=%s", route, getRequests(), getFailures(), getRetries(), getCoalesced(), getLatencyP50(),
+            getLatencyP95(), getLatencyP99(), getMaxLatency(), getBytesSent(), getBytesReceived(), getStatusCounts());
+    }
+}
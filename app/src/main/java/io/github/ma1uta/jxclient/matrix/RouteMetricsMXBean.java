@@ -0,0 +1,129 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import java.util.Map;
+
+/**
+ * Management interface of the route metrics. The latencies are in milliseconds, the percentiles are the upper bounds of
+ * the histogram buckets.
+ */
+public interface RouteMetricsMXBean {
+
+    /**
+     * Provides the route name.
+     *
+     * @return the api class and the api method ({@code Class#method}).
+     */
+    String getRoute();
+
+    /**
+     * Provides the count of the completed attempts, including the retries.
+     *
+     * @return the count of the attempts.
+     */
+    long getRequests();
+
+    /**
+     * Provides the count of the attempts which failed without the response.
+     *
+     * @return the count of the failures.
+     */
+    long getFailures();
+
+    /**
+     * Provides the count of the repeated attempts (the transient failures and the rate limited requests).
+     *
+     * @return the count of the retries.
+     */
+    long getRetries();
+
+    /**
+     * Provides the count of the requests which weren't sent because they joined the identical request in flight.
+     *
+     * @return the count of the coalesced requests.
+     */
+    long getCoalesced();
+
+    /**
+     * Provides the count of the request body bytes.
+     *
+     * @return the sent bytes.
+     */
+    long getBytesSent();
+
+    /**
+     * Provides the count of the response body bytes as they were transferred (before the decompression).
+     *
+     * @return the received bytes.
+     */
+    long getBytesReceived();
+
+    /**
+     * Provides the response counts by the status code.
+     *
+     * @return the status codes with their counts.
+     */
+    Map<Integer, Long> getStatusCounts();
+
+    /**
+     * Provides the latency histogram.
+     *
+     * @return the upper bounds of the buckets in milliseconds with the counts of the attempts.
+     */
+    Map<Long, Long> getLatencyHistogram();
+
+    /**
+     * Provides the mean latency.
+     *
+     * @return the mean latency in milliseconds.
+     */
+    double getMeanLatency();
+
+    /**
+     * Provides the maximum latency.
+     *
+     * @return the maximum latency in milliseconds.
+     */
+    long getMaxLatency();
+
+    /**
+     * Provides the median latency.
+     *
+     * @return the 50th percentile in milliseconds.
+     */
+    long getLatencyP50();
+
+    /**
+     * Provides the 95th percentile of the latency.
+     *
+     * @return the 95th percentile in milliseconds.
+     */
+    long getLatencyP95();
+
+    /**
+     * Provides the 99th percentile of the latency.
+     *
+     * @return the 99th percentile in milliseconds.
+     */
+    long getLatencyP99();
+
+    /**
+     * Reset all counters.
+     */
+    void reset();
+}
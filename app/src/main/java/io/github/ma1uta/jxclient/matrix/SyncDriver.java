@@ -0,0 +1,187 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import static java.lang.System.Logger.Level.ERROR;
+import static java.lang.System.Logger.Level.INFO;
+import static java.lang.System.Logger.Level.WARNING;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Drives the sync loop. In the {@link Mode#LONG_POLL} mode the homeserver holds the request until new events arrive
+ * or the timeout is over, and the next request is sent as soon as the previous one completes. The {@link Mode#SHORT_POLL}
+ * mode is a fallback for servers or proxies which can't hold the connection: requests are sent with the zero timeout and
+ * the fixed period between them. The driver is the fetch stage of the {@link SyncPipeline}: the next request is sent as soon
+ * as the previous response is decoded. The first request is always sent with the zero timeout to get the initial state
+ * quickly.
+ * When the request fails the next one is delayed by the {@link Backoff}. If the homeserver cannot be reached the driver
+ * sends only the cheap probe requests with the same backoff and resumes the sync as soon as the probe succeeds. If the
+ * homeserver rejects the sync filter the filter is uploaded again before the next request.
+ */
+public class SyncDriver {
+
+    private static final System.Logger LOGGER = System.getLogger("SYNC");
+
+    /**
+     * Default server-side timeout of the long-poll request in milliseconds.
+     */
+    public static final long DEFAULT_TIMEOUT = 30_000L;
+
+    /**
+     * Default period between short-poll requests in milliseconds.
+     */
+    public static final long DEFAULT_PERIOD = 300L;
+
+    /**
+     * Sync modes.
+     */
+    public enum Mode {
+        /**
+         * The server holds the request until new events arrive or the timeout is over.
+         */
+        LONG_POLL,
+
+        /**
+         * The server responds immediately, requests are sent periodically.
+         */
+        SHORT_POLL
+    }
+
+    private final SyncEngine syncEngine;
+    private final SyncPipeline pipeline;
+    private final ScheduledExecutorService executorService;
+    private final Mode mode;
+    private final long timeout;
+    private final long period;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final Backoff backoff;
+    private final SyncFilter syncFilter;
+
+    public SyncDriver(SyncEngine syncEngine, SyncPipeline pipeline, ScheduledExecutorService executorService, Mode mode,
+                      long timeout, long period, Backoff backoff, SyncFilter syncFilter) {
+        this.syncEngine = syncEngine;
+        this.syncFilter = syncFilter;
+        this.pipeline = pipeline;
+        this.executorService = executorService;
+        this.mode = mode;
+        this.timeout = timeout;
+        this.period = period;
+        this.backoff = backoff;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Start the sync loop.
+     */
+    public void start() {
+        if (running.compareAndSet(false, true)) {
+            pipeline.start();
+            executorService.execute(() -> poll(0L));
+        }
+    }
+
+    /**
+     * Stop the sync loop. The request in flight isn't cancelled but its response is discarded.
+     */
+    public void stop() {
+        running.set(false);
+        pipeline.stop();
+    }
+
+    /**
+     * Wait until the pipeline of the stopped sync loop exits.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit    the time unit of the timeout.
+     * @return {@code true} if the pipeline has exited and {@code false} if the timeout elapsed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return pipeline.awaitTermination(timeout, unit);
+    }
+
+    private void poll(long requestTimeout) {
+        if (!running.get()) {
+            return;
+        }
+        var started = System.nanoTime();
+        syncEngine.fetch(requestTimeout).thenCompose(body -> pipeline.submit(body, started)).whenComplete((syncResponse, throwable) -> {
+            if (throwable != null) {
+                failed(throwable);
+            } else {
+                backoff.reset();
+                schedule(mode == Mode.LONG_POLL ? 0L : period);
+            }
+        });
+    }
+
+    private void failed(Throwable throwable) {
+        var delay = backoff.next();
+        if (syncFilter != null && syncEngine.getFilterId() != null && SyncFilter.isFilterError(throwable)) {
+            LOGGER.log(WARNING, "Sync filter is rejected.", throwable);
+            syncFilter.reset().thenAccept(filterId -> {
+                syncEngine.setFilterId(filterId);
+                schedule(delay);
+            });
+        } else if (Backoff.isConnectivityLoss(throwable)) {
+            LOGGER.log(WARNING, String.format("Homeserver is unreachable, probe in %d ms.", delay), throwable);
+            executorService.schedule(this::probe, delay, TimeUnit.MILLISECONDS);
+        } else {
+            LOGGER.log(ERROR, String.format("Failed to sync, retry in %d ms.", delay), throwable);
+            schedule(delay);
+        }
+    }
+
+    private void probe() {
+        if (!running.get()) {
+            return;
+        }
+        syncEngine.probe().thenAccept(reachable -> {
+            if (reachable) {
+                LOGGER.log(INFO, "Homeserver is reachable, resume sync.");
+                backoff.reset();
+                schedule(0L);
+            } else {
+                var delay = backoff.next();
+                LOGGER.log(WARNING, String.format("Homeserver is unreachable, probe in %d ms.", delay));
+                executorService.schedule(this::probe, delay, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    private void schedule(long delay) {
+        if (!running.get()) {
+            return;
+        }
+        var requestTimeout = mode == Mode.LONG_POLL ? timeout : 0L;
+        if (delay > 0L) {
+            executorService.schedule(() -> poll(requestTimeout), delay, TimeUnit.MILLISECONDS);
+        } else {
+            executorService.execute(() -> poll(requestTimeout));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import io.github.ma1uta.matrix.client.RequestParams;
+import io.github.ma1uta.matrix.client.api.SyncApi;
+import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
+import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Incremental sync engine. Tracks the {@code next_batch} token of the last applied sync response and sends it as
+ * the {@code since} parameter of the next request, so the homeserver returns only the changes instead of the full snapshot.
+ */
+public class SyncEngine {
+
+    private final PlainRequestFactory requestFactory;
+    private final RequestParams defaultParams;
+    private final SyncResponseReader reader;
+    private final Consumer<String> tokenStore;
+
+    private volatile String nextBatch;
+    private volatile String committedBatch;
+    private volatile String filterId;
+    private volatile boolean fullState;
+
+    /**
+     * Create a new sync engine.
+     *
+     * @param requestFactory the request factory.
+     * @param defaultParams  the default request parameters of the account (access token, device id).
+     * @param nextBatch      the persisted token of the last applied sync or {@code null} to start from the full snapshot.
+     * @param fullState      {@code true} to request the full room state with the first request, it is required when the rooms
+     *                       aren't restored from the local store.
+     * @param tokenStore     the callback to persist the new token.
+     */
+    public SyncEngine(PlainRequestFactory requestFactory, RequestParams defaultParams, String nextBatch, boolean fullState,
+                      Consumer<String> tokenStore) {
+        this.requestFactory = requestFactory;
+        this.defaultParams = defaultParams;
+        this.reader = new SyncResponseReader(requestFactory.getMapper());
+        this.nextBatch = nextBatch;
+        this.fullState = fullState;
+        this.committedBatch = nextBatch;
+        this.tokenStore = tokenStore;
+    }
+
+    public String getNextBatch() {
+        return nextBatch;
+    }
+
+    public String getFilterId() {
+        return filterId;
+    }
+
+    public void setFilterId(String filterId) {
+        this.filterId = filterId;
+    }
+
+    /**
+     * Request the changes since the last decoded sync. The first request after start asks for the full room state even if
+     * the persisted token exists unless the rooms are restored from the local store.
+     *
+     * @param timeout the server-side timeout in milliseconds.
+     * @return the response body, it should be read with the {@link #decode(InputStream, BiConsumer)}.
+     */
+    public CompletableFuture<InputStream> fetch(long timeout) {
+        var params = defaultParams.clone()
+            .query("full_state", Boolean.toString(fullState))
+            .query("timeout", Long.toString(timeout));
+        if (filterId != null) {
+            params.query("filter", filterId);
+        }
+        if (nextBatch != null) {
+            params.query("since", nextBatch);
+        }
+        // the homeserver holds the long-poll request for the timeout, so the request waits longer than the default timeout.
+        return requestFactory.stream(SyncApi.class, "sync", params, HttpClients.DEFAULT_REQUEST_TIMEOUT.plusMillis(timeout),
+            body -> body);
+    }
+
+    /**
+     * Check that the homeserver is reachable.
+     *
+     * @return {@code true} if the homeserver is reachable, else {@code false}.
+     */
+    public CompletableFuture<Boolean> probe() {
+        return requestFactory.probe();
+    }
+
+    /**
+     * Read the response body and advance the token, so the next request can be sent before the response is applied.
+     *
+     * @param body         the response body.
+     * @param roomConsumer the consumer of the joined rooms, it is invoked while the response is being downloaded.
+     * @return the sync response, the joined rooms passed to the consumer aren't kept in it.
+     * @throws IOException when the response cannot be read.
+     */
+    public SyncResponse decode(InputStream body, BiConsumer<String, JoinedRoom> roomConsumer) throws IOException {
+        var syncResponse = reader.read(body, roomConsumer);
+        if (syncResponse.getNextBatch() != null) {
+            nextBatch = syncResponse.getNextBatch();
+            fullState = false;
+        }
+        return syncResponse;
+    }
+
+    /**
+     * Persist the token of the applied sync response.
+     *
+     * @param syncResponse the applied sync response.
+     */
+    public void commit(SyncResponse syncResponse) {
+        var token = syncResponse.getNextBatch();
+        if (token != null && !token.equals(committedBatch)) {
+            committedBatch = token;
+            tokenStore.accept(token);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import static java.lang.System.Logger.Level.ERROR;
+import static java.lang.System.Logger.Level.WARNING;
+
+import io.github.ma1uta.matrix.client.MatrixClient;
+import io.github.ma1uta.matrix.client.model.filter.Filter;
+import io.github.ma1uta.matrix.client.model.filter.FilterData;
+import io.github.ma1uta.matrix.client.model.filter.FilterResponse;
+import io.github.ma1uta.matrix.client.model.filter.RoomEventFilter;
+import io.github.ma1uta.matrix.client.model.filter.RoomFilter;
+import io.github.ma1uta.matrix.impl.exception.MatrixException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Server-side sync filter. The filter is uploaded once and its id is cached in the account preferences, so the homeserver
+ * sends only the events the client renders: a limited timeline, the state events of the room list and the members of the
+ * timeline senders (lazy-loaded members). If the homeserver rejects the cached filter (for example, after the homeserver
+ * reset) the cached id is dropped and the filter is uploaded again.
+ */
+public class SyncFilter {
+
+    private static final System.Logger LOGGER = System.getLogger("SYNC_FILTER");
+
+    /**
+     * Version of the filter definition. Increase it when the definition changes to upload the new filter.
+     */
+    public static final String VERSION = "1";
+
+    /**
+     * Default count of the timeline events of each room.
+     */
+    public static final long DEFAULT_TIMELINE_LIMIT = 20L;
+
+    /**
+     * State events required to render the room list.
+     */
+    public static final List<String> STATE_TYPES = List.of(
+        "m.room.create",
+        "m.room.name",
+        "m.room.avatar",
+        "m.room.topic",
+        "m.room.canonical_alias",
+        "m.room.member"
+    );
+
+    /**
+     * Event types which aren't rendered.
+     */
+    public static final List<String> NOT_TYPES = Collections.singletonList("*");
+
+    private static final String M_INVALID_PARAM = "M_INVALID_PARAM";
+    private static final int NOT_FOUND = 404;
+
+    private final MatrixClient client;
+    private final Consumer<String> filterIdStore;
+    private final long timelineLimit;
+    private final boolean lazyLoadMembers;
+
+    private volatile String filterId;
+
+    /**
+     * Create a new sync filter.
+     *
+     * @param client          the matrix client.
+     * @param filterId        the cached filter id or {@code null} to upload the filter.
+     * @param filterIdStore   the callback to cache the uploaded filter id.
+     * @param timelineLimit   the count of the timeline events of each room.
+     * @param lazyLoadMembers {@code true} to load only the members of the timeline senders.
+     */
+    public SyncFilter(MatrixClient client, String filterId, Consumer<String> filterIdStore, long timelineLimit, boolean lazyLoadMembers) {
+        this.client = client;
+        this.filterId = filterId;
+        this.filterIdStore = filterIdStore;
+        this.timelineLimit = timelineLimit;
+        this.lazyLoadMembers = lazyLoadMembers;
+    }
+
+    public String getFilterId() {
+        return filterId;
+    }
+
+    /**
+     * Build the filter definition.
+     *
+     * @return the filter definition.
+     */
+    public FilterData build() {
+        var timeline = new RoomEventFilter();
+        timeline.setLimit(timelineLimit);
+        timeline.setLazyLoadMembers(lazyLoadMembers);
+
+        var state = new RoomEventFilter();
+        state.setTypes(STATE_TYPES);
+        state.setLazyLoadMembers(lazyLoadMembers);
+
+        var ephemeral = new RoomEventFilter();
+        ephemeral.setNotTypes(NOT_TYPES);
+
+        var room = new RoomFilter();
+        room.setTimeline(timeline);
+        room.setState(state);
+        room.setEphemeral(ephemeral);
+
+        var presence = new Filter();
+        presence.setNotTypes(NOT_TYPES);
+
+        var filterData = new FilterData();
+        filterData.setRoom(room);
+        filterData.setPresence(presence);
+        return filterData;
+    }
+
+    /**
+     * Provide the filter id, the filter is uploaded only if it isn't cached yet.
+     *
+     * @return the filter id or {@code null} if the filter cannot be uploaded.
+     */
+    public CompletableFuture<String> register() {
+        if (filterId != null) {
+            return CompletableFuture.completedFuture(filterId);
+        }
+        return client.filter().uploadFilter(build()).thenApply(FilterResponse::getFilterId).handle((newFilterId, throwable) -> {
+            if (throwable != null) {
+                LOGGER.log(ERROR, "Failed to upload the sync filter.", throwable);
+                return null;
+            }
+            this.filterId = newFilterId;
+            filterIdStore.accept(newFilterId);
+            return newFilterId;
+        });
+    }
+
+    /**
+     * Drop the cached filter id and upload the filter again.
+     *
+     * @return the new filter id or {@code null} if the filter cannot be uploaded.
+     */
+    public CompletableFuture<String> reset() {
+        LOGGER.log(WARNING, "The sync filter {0} is rejected, upload the new one.", filterId);
+        this.filterId = null;
+        filterIdStore.accept(null);
+        return register();
+    }
+
+    /**
+     * Check that the sync request is rejected because of the filter: the homeserver doesn't know the filter id or the filter
+     * is invalid.
+     *
+     * @param throwable the sync failure.
+     * @return {@code true} if the filter should be uploaded again.
+     */
+    public static boolean isFilterError(Throwable throwable) {
+        var current = throwable;
+        while (current != null) {
+            if (current instanceof MatrixException) {
+                var exception = (MatrixException) current;
+                return M_INVALID_PARAM.equals(exception.getErrcode()) || Integer.valueOf(NOT_FOUND).equals(exception.getStatus());
+            }
+            current = current.getCause();
+        }
+        return false;
+    }
+}
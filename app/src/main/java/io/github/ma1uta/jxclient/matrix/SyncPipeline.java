@@ -0,0 +1,380 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import static java.lang.System.Logger.Level.DEBUG;
+import static java.lang.System.Logger.Level.ERROR;
+import static java.lang.System.Logger.Level.WARNING;
+
+import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
+import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Staged sync pipeline. The fetched response bodies are decoded in the decode stage and the decoded rooms are applied to the
+ * model in the apply stage. The stages run in their own threads and are linked by the bounded queues: when the apply stage
+ * falls behind the decode stage blocks and stops reading the response body, and because the next request needs the token
+ * of the decoded response the fetch stage slows down too. The next long-poll request is sent as soon as the previous
+ * response is decoded, so it is already in flight while the previous batch is being applied.
+ */
+public class SyncPipeline {
+
+    private static final System.Logger LOGGER = System.getLogger("SYNC_PIPELINE");
+
+    /**
+     * Default capacity of the queue between the fetch and decode stages.
+     */
+    public static final int DEFAULT_DECODE_QUEUE = 2;
+
+    /**
+     * Default capacity of the queue between the decode and apply stages.
+     */
+    public static final int DEFAULT_APPLY_QUEUE = 64;
+
+    private final SyncEngine syncEngine;
+    private final BiConsumer<String, JoinedRoom> roomHandler;
+    private final Runnable abortHandler;
+    private final Consumer<SyncResponse> batchHandler;
+    private final String name;
+
+    private final BlockingQueue<Fetched> decodeQueue;
+    private final BlockingQueue<Decoded> applyQueue;
+
+    private final Stage fetchStage = new Stage("fetch");
+    private final Stage decodeStage = new Stage("decode");
+    private final Stage applyStage = new Stage("apply");
+
+    private volatile boolean running;
+    private Thread decodeThread;
+    private Thread applyThread;
+
+    /**
+     * Create a new pipeline.
+     *
+     * @param name         the name of the pipeline (used in the thread names).
+     * @param syncEngine   the sync engine.
+     * @param roomHandler  the handler of the joined rooms.
+     * @param batchHandler the handler of the sync response, invoked after all rooms of the response are handled.
+     * @param abortHandler the handler invoked in the apply thread when the response fails to decode or to apply and when the
+     *                     pipeline stops, so the state owned by the apply thread (e.g. the uncommitted store batch) is
+     *                     discarded and the rooms of the failed response are never committed with the next one.
+     * @param decodeQueue  the capacity of the queue between the fetch and decode stages.
+     * @param applyQueue   the capacity of the queue between the decode and apply stages.
+     */
+    public SyncPipeline(String name, SyncEngine syncEngine, BiConsumer<String, JoinedRoom> roomHandler,
+                        Consumer<SyncResponse> batchHandler, Runnable abortHandler, int decodeQueue, int applyQueue) {
+        this.name = name;
+        this.syncEngine = syncEngine;
+        this.roomHandler = roomHandler;
+        this.batchHandler = batchHandler;
+        this.abortHandler = abortHandler;
+        this.decodeQueue = new ArrayBlockingQueue<>(decodeQueue);
+        this.applyQueue = new ArrayBlockingQueue<>(applyQueue);
+    }
+
+    public Stage getFetchStage() {
+        return fetchStage;
+    }
+
+    public Stage getDecodeStage() {
+        return decodeStage;
+    }
+
+    public Stage getApplyStage() {
+        return applyStage;
+    }
+
+    public int getDecodeQueueDepth() {
+        return decodeQueue.size();
+    }
+
+    public int getApplyQueueDepth() {
+        return applyQueue.size();
+    }
+
+    /**
+     * Start the decode and apply stages.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        decodeThread = new Thread(this::decodeLoop, "sync-decode-" + name);
+        decodeThread.setDaemon(true);
+        decodeThread.start();
+        applyThread = new Thread(this::applyLoop, "sync-apply-" + name);
+        applyThread.setDaemon(true);
+        applyThread.start();
+    }
+
+    /**
+     * Stop the pipeline. The queued but not applied responses are discarded, their tokens aren't committed.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        decodeThread.interrupt();
+        applyThread.interrupt();
+        var pending = new ArrayList<Fetched>();
+        decodeQueue.drainTo(pending);
+        for (Fetched fetched : pending) {
+            close(fetched.body);
+            fetched.decoded.cancel(false);
+        }
+        applyQueue.clear();
+    }
+
+    /**
+     * Wait until the stopped pipeline threads exit, so the apply stage no longer touches the model and the store.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit    the time unit of the timeout.
+     * @return {@code true} if the threads have exited and {@code false} if the timeout elapsed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        Thread[] threads;
+        synchronized (this) {
+            threads = new Thread[] {decodeThread, applyThread};
+        }
+        var deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : threads) {
+            if (thread == null) {
+                continue;
+            }
+            var remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining > 0L) {
+                thread.join(remaining);
+            }
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pass the fetched response body to the decode stage.
+     *
+     * @param body         the response body.
+     * @param fetchStarted the time when the request was sent (see {@link System#nanoTime()}).
+     * @return the decoded response. It completes when the response is decoded and the next request can be sent, the response
+     *     may be not applied yet.
+     */
+    public CompletableFuture<SyncResponse> submit(InputStream body, long fetchStarted) {
+        fetchStage.record(fetchStarted);
+        var fetched = new Fetched(body);
+        try {
+            if (!running) {
+                throw new IllegalStateException("The sync pipeline is stopped.");
+            }
+            decodeQueue.put(fetched);
+        } catch (InterruptedException | RuntimeException e) {
+            close(body);
+            fetched.decoded.completeExceptionally(e);
+        }
+        return fetched.decoded;
+    }
+
+    private void decodeLoop() {
+        while (running) {
+            Fetched fetched;
+            try {
+                fetched = decodeQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            var started = System.nanoTime();
+            try {
+                var syncResponse = syncEngine.decode(fetched.body,
+                    (roomId, joinedRoom) -> enqueue(new Decoded(roomId, joinedRoom, null)));
+                enqueue(new Decoded(null, null, syncResponse));
+                decodeStage.record(started);
+                fetched.decoded.complete(syncResponse);
+            } catch (Exception e) {
+                close(fetched.body);
+                // the rooms of the response could be already passed to the apply stage.
+                abort();
+                fetched.decoded.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void enqueue(Decoded decoded) {
+        try {
+            applyQueue.put(decoded);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("The sync pipeline is stopped.", e);
+        }
+    }
+
+    private void abort() {
+        try {
+            applyQueue.put(Decoded.ABORT);
+        } catch (InterruptedException e) {
+            // the pipeline is stopping, the apply stage aborts the batch on exit.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void applyLoop() {
+        try {
+            while (running) {
+                Decoded decoded;
+                try {
+                    decoded = applyQueue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                apply(decoded);
+            }
+        } finally {
+            abortHandler.run();
+        }
+    }
+
+    private void apply(Decoded decoded) {
+        var started = System.nanoTime();
+        try {
+            if (decoded == Decoded.ABORT) {
+                LOGGER.log(WARNING, "Sync pipeline {0}: the response failed, its rooms are discarded.", name);
+                abortHandler.run();
+            } else if (decoded.syncResponse == null) {
+                roomHandler.accept(decoded.roomId, decoded.joinedRoom);
+            } else {
+                batchHandler.accept(decoded.syncResponse);
+                syncEngine.commit(decoded.syncResponse);
+                if (LOGGER.isLoggable(DEBUG)) {
+                    LOGGER.log(DEBUG, "Sync pipeline {0}: {1}, {2}, {3}, decode queue: {4}, apply queue: {5}", name, fetchStage,
+                        decodeStage, applyStage, getDecodeQueueDepth(), getApplyQueueDepth());
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.log(ERROR, "Failed to apply the sync response.", e);
+            if (decoded.syncResponse != null) {
+                abortHandler.run();
+            }
+        }
+        applyStage.record(started);
+    }
+
+    private void close(InputStream body) {
+        try {
+            body.close();
+        } catch (IOException e) {
+            LOGGER.log(DEBUG, "Failed to close the response body.", e);
+        }
+    }
+
+    /**
+     * Latency statistics of the pipeline stage.
+     */
+    public static class Stage {
+
+        private final String name;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private volatile long lastNanos;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        void record(long started) {
+            var elapsed = System.nanoTime() - started;
+            count.incrementAndGet();
+            totalNanos.addAndGet(elapsed);
+            maxNanos.accumulateAndGet(elapsed, Math::max);
+            lastNanos = elapsed;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getLastMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(lastNanos);
+        }
+
+        public long getMaxMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+        }
+
+        /**
+         * Average latency of the stage.
+         *
+         * @return average latency in milliseconds.
+         */
+        public long getAverageMillis() {
+            var processed = count.get();
+            return processed == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / processed);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d (avg %d ms, max %d ms, last %d ms)", name, getCount(), getAverageMillis(), getMaxMillis(),
+                getLastMillis());
+        }
+    }
+
+    private static final class Fetched {
+
+        private final InputStream body;
+        private final CompletableFuture<SyncResponse> decoded = new CompletableFuture<>();
+
+        private Fetched(InputStream body) {
+            this.body = body;
+        }
+    }
+
+    private static final class Decoded {
+
+        /**
+         * The marker of the failed response.
+         */
+        private static final Decoded ABORT = new Decoded(null, null, null);
+
+        private final String roomId;
+        private final JoinedRoom joinedRoom;
+        private final SyncResponse syncResponse;
+
+        private Decoded(String roomId, JoinedRoom joinedRoom, SyncResponse syncResponse) {
+            this.roomId = roomId;
+            this.joinedRoom = joinedRoom;
+            this.syncResponse = syncResponse;
+        }
+    }
+}
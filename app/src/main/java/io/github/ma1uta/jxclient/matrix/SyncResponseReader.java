@@ -0,0 +1,111 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
+import io.github.ma1uta.matrix.client.model.sync.Rooms;
+import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Streaming reader of the sync response. Joined rooms are read one by one straight from the response body and passed
+ * to the consumer as soon as they are parsed, so the whole response is never kept in the memory and the rooms at the top
+ * of the response are rendered before the download is finished. The rest of the response is small and is read as usual.
+ */
+public class SyncResponseReader {
+
+    private final ObjectMapper mapper;
+
+    public SyncResponseReader(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * Read the sync response.
+     *
+     * @param body         the response body.
+     * @param roomConsumer the consumer of the joined rooms or {@code null} to keep the joined rooms in the response.
+     * @return the sync response. The joined rooms passed to the consumer aren't kept in it.
+     * @throws IOException when the response cannot be read.
+     */
+    public SyncResponse read(InputStream body, BiConsumer<String, JoinedRoom> roomConsumer) throws IOException {
+        try (JsonParser parser = mapper.getFactory().createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("The sync response should be a json object.");
+            }
+            ObjectNode rest = mapper.createObjectNode();
+            Map<String, JoinedRoom> join = new HashMap<>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                var fieldName = parser.getCurrentName();
+                if ("rooms".equals(fieldName) && parser.nextToken() == JsonToken.START_OBJECT) {
+                    readRooms(parser, rest.putObject("rooms"), join, roomConsumer);
+                } else {
+                    if (parser.currentToken() == JsonToken.FIELD_NAME) {
+                        parser.nextToken();
+                    }
+                    rest.set(fieldName, readTree(parser));
+                }
+            }
+
+            var syncResponse = mapper.treeToValue(rest, SyncResponse.class);
+            if (syncResponse.getRooms() == null) {
+                syncResponse.setRooms(new Rooms());
+            }
+            syncResponse.getRooms().setJoin(join);
+            return syncResponse;
+        }
+    }
+
+    private void readRooms(JsonParser parser, ObjectNode rooms, Map<String, JoinedRoom> join, BiConsumer<String, JoinedRoom> roomConsumer)
+        throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var section = parser.getCurrentName();
+            if ("join".equals(section) && parser.nextToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    var roomId = parser.getCurrentName();
+                    parser.nextToken();
+                    var joinedRoom = mapper.readValue(parser, JoinedRoom.class);
+                    if (roomConsumer != null) {
+                        roomConsumer.accept(roomId, joinedRoom);
+                    } else {
+                        join.put(roomId, joinedRoom);
+                    }
+                }
+            } else {
+                if (parser.currentToken() == JsonToken.FIELD_NAME) {
+                    parser.nextToken();
+                }
+                rooms.set(section, readTree(parser));
+            }
+        }
+    }
+
+    private JsonNode readTree(JsonParser parser) throws IOException {
+        JsonNode node = mapper.readTree(parser);
+        return node != null ? node : mapper.getNodeFactory().nullNode();
+    }
+}
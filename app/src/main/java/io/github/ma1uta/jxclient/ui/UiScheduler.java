@@ -0,0 +1,400 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.ui;
+
+import static java.lang.System.Logger.Level.ERROR;
+import static java.lang.System.Logger.Level.WARNING;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Scheduler of the UI actions aligned with the JavaFX pulse. On every frame the queued actions are run until the frame
+ * budget is spent, the rest are left for the next frame, so a burst of the updates reaches the screen as fast as the frames
+ * allow without stalling the rendering. The timer is stopped when the queue is empty, so the idle scheduler doesn't wake up.
+ * <br>
+ * The keyed actions (the owner and its property, for example the room and its name) replace the pending action with the same
+ * key, so only the latest value of the property reaches the FX thread. The replacing action keeps the place of the replaced
+ * one in the queue.
+ * <br>
+ * The queue is bounded. When it is full the sync apply stage (see {@link #submitBlocking(Runnable)}) waits for the free
+ * slot for a while, so the sync slows down to the pace of the FX thread instead of piling up the prepared views. The other
+ * producers (the media callbacks, the backfill, the FX thread itself) never wait. If the slot isn't freed the action with
+ * the fallback is dropped and its fallback (for example, the "refresh" marker of the room) is queued as the keyed action of
+ * its owner, the action without the fallback is queued over the bound.
+ * <br>
+ * The closed scheduler drops the submitted actions.
+ */
+public class UiScheduler implements UiSchedulerMXBean, AutoCloseable {
+
+    private static final System.Logger LOGGER = System.getLogger("UI_SCHEDULER");
+
+    /**
+     * Default time budget of the frame in milliseconds.
+     */
+    public static final long DEFAULT_FRAME_BUDGET = 8L;
+
+    /**
+     * Default capacity of the queue.
+     */
+    public static final int DEFAULT_CAPACITY = 1_000;
+
+    /**
+     * Default time the producer waits for the free slot in milliseconds.
+     */
+    public static final long DEFAULT_MAX_WAIT = 500L;
+
+    private static final String OVERFLOW = "overflow";
+
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final Map<Key, Runnable> latest = new ConcurrentHashMap<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile boolean closed;
+    private final long frameBudget;
+    private final int capacity;
+    private final long maxWait;
+    private final Semaphore permits;
+    private ObjectName name;
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            drain();
+        }
+    };
+
+    public UiScheduler() {
+        this(DEFAULT_FRAME_BUDGET, DEFAULT_CAPACITY, DEFAULT_MAX_WAIT);
+    }
+
+    /**
+     * Create a new scheduler.
+     *
+     * @param frameBudget the time budget of the frame in milliseconds.
+     * @param capacity    the capacity of the queue.
+     * @param maxWait     the time the producer waits for the free slot in milliseconds.
+     */
+    public UiScheduler(long frameBudget, int capacity, long maxWait) {
+        this.frameBudget = TimeUnit.MILLISECONDS.toNanos(frameBudget);
+        this.capacity = capacity;
+        this.maxWait = maxWait;
+        this.permits = new Semaphore(capacity);
+        register();
+    }
+
+    private void register() {
+        try {
+            var objectName = new ObjectName("io.github.ma1uta.jxclient:type=UiScheduler,id=" + COUNTER.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            this.name = objectName;
+        } catch (JMException e) {
+            LOGGER.log(ERROR, "Failed to register the UI scheduler metrics.", e);
+        }
+    }
+
+    /**
+     * Unregister the metrics and drop the queued actions. The closed scheduler should be replaced by the new one.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                LOGGER.log(ERROR, "Failed to unregister the UI scheduler metrics.", e);
+            }
+            name = null;
+        }
+        queue.clear();
+        latest.clear();
+        depth.set(0);
+        Platform.runLater(() -> {
+            timer.stop();
+            running.set(false);
+        });
+    }
+
+    /**
+     * Add the action to run in the FX thread. If the queue is full the action is queued over the bound.
+     *
+     * @param action the action to update UI.
+     */
+    public void submit(Runnable action) {
+        submit(action, false);
+    }
+
+    /**
+     * Add the action to run in the FX thread. The producer waits while the queue is full, then the action is queued over the
+     * bound. Only the sync apply stage should wait.
+     *
+     * @param action the action to update UI.
+     */
+    public void submitBlocking(Runnable action) {
+        submit(action, true);
+    }
+
+    private void submit(Runnable action, boolean blocking) {
+        if (closed) {
+            return;
+        }
+        if (acquire(blocking)) {
+            enqueue(new Bounded(action));
+        } else {
+            overflows.incrementAndGet();
+            enqueue(action);
+        }
+    }
+
+    /**
+     * Add the action to run in the FX thread. If the queue is full the action is dropped and the fallback is queued instead.
+     * The pending fallback of the same owner is replaced.
+     *
+     * @param owner    the updated object (the room, the view).
+     * @param action   the action to update UI.
+     * @param fallback the action which is run instead of the dropped ones.
+     */
+    public void submit(Object owner, Runnable action, Runnable fallback) {
+        submit(owner, action, fallback, false);
+    }
+
+    /**
+     * Add the action to run in the FX thread. The producer waits while the queue is full, then the action is dropped and
+     * the fallback is queued instead. The pending fallback of the same owner is replaced. Only the sync apply stage should
+     * wait.
+     *
+     * @param owner    the updated object (the room, the view).
+     * @param action   the action to update UI.
+     * @param fallback the action which is run instead of the dropped ones.
+     */
+    public void submitBlocking(Object owner, Runnable action, Runnable fallback) {
+        submit(owner, action, fallback, true);
+    }
+
+    private void submit(Object owner, Runnable action, Runnable fallback, boolean blocking) {
+        if (closed) {
+            return;
+        }
+        if (acquire(blocking)) {
+            enqueue(new Bounded(action));
+        } else {
+            overflows.incrementAndGet();
+            LOGGER.log(WARNING, "UI queue is full, the update of {0} is dropped.", owner);
+            submit(owner, OVERFLOW, fallback);
+        }
+    }
+
+    /**
+     * Add the keyed action to run in the FX thread. The pending action with the same key is replaced.
+     *
+     * @param owner    the updated object (the room, the view).
+     * @param property the updated property.
+     * @param action   the action to update UI.
+     */
+    public void submit(Object owner, String property, Runnable action) {
+        if (closed) {
+            return;
+        }
+        var key = new Key(owner, property);
+        if (latest.put(key, action) != null) {
+            coalesced.incrementAndGet();
+            return;
+        }
+        // the keyed actions don't take the slots, their count is bounded by the count of the keys.
+        enqueue(() -> {
+            var current = latest.remove(key);
+            if (current != null) {
+                current.run();
+            }
+        });
+    }
+
+    private boolean acquire(boolean blocking) {
+        if (!blocking || Platform.isFxApplicationThread()) {
+            return permits.tryAcquire();
+        }
+        if (permits.tryAcquire()) {
+            return true;
+        }
+        var started = System.nanoTime();
+        try {
+            return permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            var waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            waitTime.addAndGet(waited);
+            maxWaitTime.accumulateAndGet(waited, Math::max);
+        }
+    }
+
+    private void enqueue(Runnable action) {
+        maxDepth.accumulateAndGet(depth.incrementAndGet(), Math::max);
+        queue.offer(action);
+        wakeUp();
+    }
+
+    @Override
+    public int getDepth() {
+        return depth.get();
+    }
+
+    @Override
+    public int getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    @Override
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    @Override
+    public long getWaitTime() {
+        return waitTime.get();
+    }
+
+    @Override
+    public long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+
+    private void wakeUp() {
+        // the closed scheduler must not restart the timer stopped by close().
+        if (!closed && running.compareAndSet(false, true)) {
+            Platform.runLater(timer::start);
+        }
+    }
+
+    /**
+     * Run the queued actions until the queue is empty or the frame budget is spent. At least one action is run on every
+     * frame, so the slow action doesn't block the queue.
+     */
+    private void drain() {
+        if (closed) {
+            timer.stop();
+            return;
+        }
+        var deadline = System.nanoTime() + frameBudget;
+        Runnable action;
+        do {
+            action = queue.poll();
+            if (action != null) {
+                depth.decrementAndGet();
+                if (action instanceof Bounded) {
+                    permits.release();
+                }
+                run(action);
+            }
+        }
+        while (action != null && System.nanoTime() < deadline);
+
+        if (queue.isEmpty()) {
+            timer.stop();
+            running.set(false);
+            // the action could be submitted after the check but before the flag was cleared.
+            if (!queue.isEmpty()) {
+                wakeUp();
+            }
+        }
+    }
+
+    private void run(Runnable action) {
+        try {
+            action.run();
+        } catch (RuntimeException e) {
+            LOGGER.log(ERROR, "Failed to update UI.", e);
+        }
+    }
+
+    /**
+     * The action which takes the slot of the queue.
+     */
+    private static final class Bounded implements Runnable {
+
+        private final Runnable action;
+
+        private Bounded(Runnable action) {
+            this.action = action;
+        }
+
+        @Override
+        public void run() {
+            action.run();
+        }
+    }
+
+    private static final class Key {
+
+        private final Object owner;
+        private final String property;
+
+        private Key(Object owner, String property) {
+            this.owner = owner;
+            this.property = property;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            var key = (Key) other;
+            return owner.equals(key.owner) && property.equals(key.property);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(owner, property);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.ui;
+
+/**
+ * Management interface of the UI scheduler.
+ */
+public interface UiSchedulerMXBean {
+
+    /**
+     * Provides the count of the pending actions.
+     *
+     * @return the queue depth.
+     */
+    int getDepth();
+
+    /**
+     * Provides the maximum count of the pending actions.
+     *
+     * @return the maximum queue depth.
+     */
+    int getMaxDepth();
+
+    /**
+     * Provides the capacity of the queue.
+     *
+     * @return the count of the slots.
+     */
+    int getCapacity();
+
+    /**
+     * Provides the count of the keyed actions which were replaced before they were run.
+     *
+     * @return the count of the coalesced actions.
+     */
+    long getCoalesced();
+
+    /**
+     * Provides the count of the actions which didn't get the slot.
+     *
+     * @return the count of the overflows.
+     */
+    long getOverflows();
+
+    /**
+     * Provides the total time the producers waited for the free slots.
+     *
+     * @return the wait time in milliseconds.
+     */
+    long getWaitTime();
+
+    /**
+     * Provides the longest wait for the free slot.
+     *
+     * @return the wait time in milliseconds.
+     */
+    long getMaxWaitTime();
+}
@@ -18,6 +18,7 @@ package io.github.ma1uta.jxclient.ui.matrix;
 
 import io.github.ma1uta.jxclient.matrix.MatrixAccount;
 import io.github.ma1uta.jxclient.matrix.Room;
+import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
 import io.github.ma1uta.matrix.client.model.sync.SyncResponse;
 import javafx.animation.Animation;
 import javafx.animation.Interpolator;
@@ -40,6 +41,7 @@ import java.util.ResourceBundle;
 public class AccountViewController implements Initializable {
 
     private static final double ROTATION = -360D;
+    private static final String SYNC_INDICATOR = "syncIndicator";
 
     private MatrixAccount account;
 
@@ -83,25 +85,12 @@ public class AccountViewController implements Initializable {
             if (rooms != null) {
                 var join = rooms.getJoin();
                 if (join != null) {
-                    join.forEach((roomId, roomData) -> {
-                        var room = this.rooms.get(roomId);
-                        if (room == null) {
-                            room = new Room(i18n, this::selectRoom);
-                            this.rooms.put(roomId, room);
-                            final var newRoom = room;
-                            account.updateUI(() -> roomList.getChildren().add(newRoom.getRoomItemView()));
-                        }
-                        try {
-                            room.parse(roomId, roomData, account);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    });
+                    join.forEach(this::parseRoom);
                 }
             }
         } finally {
             if (Animation.Status.RUNNING == syncRotation.getStatus()) {
-                account.updateUI(() -> {
+                account.updateUI(this, SYNC_INDICATOR, () -> {
                     syncRotation.stop();
                     sync.setVisible(false);
                 });
@@ -109,6 +98,27 @@ public class AccountViewController implements Initializable {
         }
     }
 
+    /**
+     * Parse the joined room.
+     *
+     * @param roomId   the room id.
+     * @param roomData the room data.
+     */
+    public void parseRoom(String roomId, JoinedRoom roomData) {
+        var room = this.rooms.get(roomId);
+        if (room == null) {
+            room = new Room(i18n, this::selectRoom);
+            this.rooms.put(roomId, room);
+            final var newRoom = room;
+            account.updateUI(() -> roomList.getChildren().add(newRoom.getRoomItemView()));
+        }
+        try {
+            room.parse(roomId, roomData, account);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * View room in the main view.
      *
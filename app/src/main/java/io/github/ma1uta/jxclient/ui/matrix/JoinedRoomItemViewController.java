@@ -17,9 +17,7 @@
 package io.github.ma1uta.jxclient.ui.matrix;
 
 import io.github.ma1uta.jxclient.matrix.MatrixAccount;
-import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
-import io.github.ma1uta.matrix.event.RoomAvatar;
-import io.github.ma1uta.matrix.event.RoomName;
+import io.github.ma1uta.jxclient.matrix.RoomState;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.Label;
@@ -27,46 +25,73 @@ import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 
 import java.net.URL;
+import java.util.Objects;
 import java.util.ResourceBundle;
+import java.util.Set;
 
 /**
  * JoinedRoomItemViewController.
  */
 public class JoinedRoomItemViewController implements Initializable {
 
+    private static final String NAME = "name";
+    private static final String AVATAR = "avatar";
+
     @FXML
     private ImageView roomAvatar;
 
     @FXML
     private Label roomName;
 
+    /**
+     * The mxc url of the current avatar. The thumbnail downloaded for the previous url is ignored.
+     */
+    private volatile String avatarUrl;
+
+    /**
+     * The size of the avatar. It is captured when the view is loaded, so the updates in the sync threads don't read the
+     * properties of the view.
+     */
+    private double avatarWidth;
+    private double avatarHeight;
+
     @Override
     public void initialize(URL location, ResourceBundle resources) {
-
+        this.avatarWidth = roomAvatar.getFitWidth();
+        this.avatarHeight = roomAvatar.getFitHeight();
     }
 
     /**
-     * Parse joined room.
+     * Update the changed fields of the room.
      *
-     * @param joinedRoom the joined room.
-     * @param account    the account.
+     * @param state   the current room state.
+     * @param changes the changed fields.
+     * @param account the account.
      */
-    public void parse(JoinedRoom joinedRoom, MatrixAccount account) {
-        joinedRoom.getState().getEvents().forEach(event -> {
-            if (event instanceof RoomName) {
-                RoomName roomName = (RoomName) event;
-                account.updateUI(() -> this.roomName.setText(roomName.getContent().getName()));
-            }
-            if (event instanceof RoomAvatar) {
-                RoomAvatar roomAvatar = (RoomAvatar) event;
-                account.getDownloader().download(roomAvatar.getContent().getUrl(), url -> {
+    public void update(RoomState state, Set<RoomState.Field> changes, MatrixAccount account) {
+        if (changes.contains(RoomState.Field.NAME)) {
+            var name = state.getName();
+            account.updateUI(this, NAME, () -> this.roomName.setText(name));
+        }
+        if (changes.contains(RoomState.Field.AVATAR)) {
+            var requestedUrl = state.getAvatarUrl();
+            this.avatarUrl = requestedUrl;
+            if (requestedUrl == null) {
+                account.updateUI(this, AVATAR, () -> this.roomAvatar.setImage(null));
+            } else {
+                var width = this.avatarWidth;
+                var height = this.avatarHeight;
+                account.getDownloader().thumbnail(requestedUrl, width, height, this, AVATAR, url -> {
+                    if (!Objects.equals(this.avatarUrl, requestedUrl)) {
+                        return;
+                    }
                     try {
-                        this.roomAvatar.setImage(new Image(url));
+                        this.roomAvatar.setImage(new Image(url, width, height, true, true));
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
                 });
             }
-        });
+        }
     }
 }
@@ -17,66 +17,260 @@
 package io.github.ma1uta.jxclient.ui.matrix;
 
 import io.github.ma1uta.jxclient.matrix.MatrixAccount;
+import io.github.ma1uta.jxclient.matrix.RoomTimeline;
 import io.github.ma1uta.jxclient.ui.matrix.message.AbstractMessage;
 import io.github.ma1uta.jxclient.ui.matrix.message.MessageLoader;
-import io.github.ma1uta.matrix.client.model.sync.JoinedRoom;
-import io.github.ma1uta.matrix.client.model.sync.Timeline;
-import io.github.ma1uta.matrix.event.Event;
 import io.github.ma1uta.matrix.event.RoomMessage;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableMap;
+import io.github.ma1uta.matrix.event.content.RoomMessageContent;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
-import javafx.scene.layout.FlowPane;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.Hyperlink;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollBar;
+import javafx.util.Pair;
 
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * JoinedRoomItemViewController.
+ * <br>
+ * The timeline is virtualized: the list holds the timeline entries and only the visible cells are materialized. The cell
+ * reuses its message view for the next message of the same type and returns it to the pool of the message loader when the
+ * type changes, so the count of the message views doesn't depend on the length of the history. The list opens at the
+ * newest message and follows the new messages while it is scrolled to the bottom.
  */
 public class JoinedRoomViewController implements Initializable {
 
     private ResourceBundle i18n;
     private MessageLoader messageLoader;
-    private ObservableMap<String, AbstractMessage<?>> messages;
+    private MatrixAccount account;
+
+    private final Set<RoomTimeline.Entry> requestedGaps = new HashSet<>();
+    private final Set<RoomTimeline.Entry> shownEntries = new HashSet<>();
+    private Consumer<RoomTimeline.Entry> gapHandler;
+    private Runnable refreshHandler;
+    private volatile boolean stale;
+
+    @FXML
+    private ListView<RoomTimeline.Entry> timeline;
 
     @FXML
-    private FlowPane timeline;
+    private Hyperlink refresh;
 
     @Override
     public void initialize(URL location, ResourceBundle resources) {
         this.i18n = resources;
         this.messageLoader = new MessageLoader(i18n);
-        this.messages = FXCollections.observableHashMap();
+        timeline.setCellFactory(list -> new TimelineCell());
+        refresh.setOnAction(event -> {
+            if (refreshHandler != null) {
+                refreshHandler.run();
+            }
+        });
+    }
+
+    public void setAccount(MatrixAccount account) {
+        this.account = account;
+    }
+
+    /**
+     * Set the handler which is invoked when the gap is scrolled into the view.
+     *
+     * @param gapHandler the gap handler.
+     */
+    public void setGapHandler(Consumer<RoomTimeline.Entry> gapHandler) {
+        this.gapHandler = gapHandler;
+    }
+
+    /**
+     * Set the handler which is invoked when the user refreshes the stale timeline.
+     *
+     * @param refreshHandler the refresh handler.
+     */
+    public void setRefreshHandler(Runnable refreshHandler) {
+        this.refreshHandler = refreshHandler;
     }
 
     /**
-     * Parse joined room.
+     * Append the timeline entries. If the UI queue is full the entries are dropped and the timeline is marked as stale,
+     * the stale timeline isn't updated until it is refreshed. The entries which are already shown (e.g. the append queued
+     * before the refresh) are skipped.
      *
-     * @param joinedRoom the joined room.
-     * @param account    the account.
+     * @param entries the new entries.
+     * @param account the account.
      */
-    public void parse(JoinedRoom joinedRoom, MatrixAccount account) {
-        Timeline timeline = joinedRoom.getTimeline();
-        if (timeline != null) {
-            List<Event> events = timeline.getEvents();
-            if (events != null) {
-                events.forEach(e -> {
-                    try {
-                        if (e instanceof RoomMessage) {
-                            RoomMessage<?> roomMessage = (RoomMessage<?>) e;
-                            var pair = messageLoader.load(roomMessage, account);
-                            if (pair != null) {
-                                account.updateUI(() -> this.timeline.getChildren().add(pair.getValue()));
-                                messages.put(roomMessage.getEventId(), pair.getKey());
-                            }
-                        }
-                    } catch (Exception exc) {
-                        exc.printStackTrace();
-                    }
-                });
+    public void append(List<RoomTimeline.Entry> entries, MatrixAccount account) {
+        if (stale) {
+            return;
+        }
+        account.updateUI(this, () -> {
+            if (stale) {
+                return;
+            }
+            var added = new ArrayList<RoomTimeline.Entry>(entries.size());
+            for (RoomTimeline.Entry entry : entries) {
+                if (shownEntries.add(entry)) {
+                    added.add(entry);
+                }
+            }
+            if (added.isEmpty()) {
+                return;
+            }
+            var items = this.timeline.getItems();
+            var follow = items.isEmpty() || isAtBottom();
+            items.addAll(added);
+            if (follow) {
+                this.timeline.scrollTo(items.size() - 1);
+            }
+        }, this::markStale);
+    }
+
+    /**
+     * Rebuild the timeline view from the entries and scroll to the newest one. Must be invoked in the FX thread.
+     *
+     * @param entries all timeline entries.
+     * @param account the account.
+     */
+    public void reset(List<RoomTimeline.Entry> entries, MatrixAccount account) {
+        requestedGaps.clear();
+        shownEntries.clear();
+        shownEntries.addAll(entries);
+        var items = this.timeline.getItems();
+        items.setAll(entries);
+        if (!items.isEmpty()) {
+            this.timeline.scrollTo(items.size() - 1);
+        }
+        stale = false;
+        refresh.setVisible(false);
+        refresh.setManaged(false);
+    }
+
+    private boolean isAtBottom() {
+        for (Node node : this.timeline.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                var scrollBar = (ScrollBar) node;
+                return !scrollBar.isVisible() || scrollBar.getValue() >= scrollBar.getMax();
+            }
+        }
+        return true;
+    }
+
+    private void markStale() {
+        stale = true;
+        refresh.setVisible(true);
+        refresh.setManaged(true);
+    }
+
+    /**
+     * Replace the gap with the loaded entries.
+     *
+     * @param gap         the filled gap.
+     * @param replacement the loaded entries.
+     * @param account     the account.
+     */
+    public void replaceGap(RoomTimeline.Entry gap, List<RoomTimeline.Entry> replacement, MatrixAccount account) {
+        account.updateUI(() -> {
+            requestedGaps.remove(gap);
+            var items = this.timeline.getItems();
+            var index = items.indexOf(gap);
+            if (index < 0) {
+                return;
+            }
+            items.remove(index);
+            shownEntries.remove(gap);
+            shownEntries.addAll(replacement);
+            items.addAll(index, replacement);
+            // keep the message which followed the gap in its place instead of jumping to the loaded history.
+            this.timeline.scrollTo(index + replacement.size());
+        });
+    }
+
+    /**
+     * Release the gap after the failed request, so it will be requested again when it is shown next time.
+     *
+     * @param gap     the gap.
+     * @param account the account.
+     */
+    public void gapFailed(RoomTimeline.Entry gap, MatrixAccount account) {
+        account.updateUI(() -> requestedGaps.remove(gap));
+    }
+
+    private void requestGap(RoomTimeline.Entry gap) {
+        if (gapHandler != null && requestedGaps.add(gap)) {
+            gapHandler.accept(gap);
+        }
+    }
+
+    /**
+     * The cell of the timeline.
+     */
+    private final class TimelineCell extends ListCell<RoomTimeline.Entry> {
+
+        private String type;
+        private Pair<AbstractMessage<RoomMessageContent>, Node> view;
+        private Label gapView;
+
+        private TimelineCell() {
+            setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
+            // the cell takes the width of the list, so the long messages are wrapped.
+            setPrefWidth(0);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void updateItem(RoomTimeline.Entry entry, boolean empty) {
+            super.updateItem(entry, empty);
+            if (empty || entry == null) {
+                release();
+                setGraphic(null);
+                return;
+            }
+            if (entry.isGap()) {
+                release();
+                if (gapView == null) {
+                    gapView = new Label(i18n.getString("room.timeline.gap"));
+                }
+                setGraphic(gapView);
+                // the gap cell is materialized only when it is close to the viewport.
+                requestGap(entry);
+                return;
+            }
+            var event = (RoomMessage<RoomMessageContent>) entry.getEvent();
+            var content = event.getContent();
+            var msgtype = content != null ? content.getMsgtype() : null;
+            if (view == null || !Objects.equals(type, msgtype)) {
+                release();
+                view = messageLoader.create(msgtype);
+                type = msgtype;
+            }
+            if (view == null) {
+                setGraphic(null);
+                return;
+            }
+            view.getKey().parse(event, account);
+            setGraphic(view.getValue());
+        }
+
+        /**
+         * Return the message view to the pool, so it can be reused by the other cell.
+         */
+        private void release() {
+            if (view != null) {
+                messageLoader.release(type, view.getKey());
+                view = null;
+                type = null;
             }
         }
     }
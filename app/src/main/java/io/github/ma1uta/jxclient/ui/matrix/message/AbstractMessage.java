@@ -16,31 +16,30 @@
 
 package io.github.ma1uta.jxclient.ui.matrix.message;
 
-import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import io.github.ma1uta.jxclient.matrix.Json;
 import io.github.ma1uta.jxclient.matrix.MatrixAccount;
 import io.github.ma1uta.matrix.event.RoomMessage;
 import io.github.ma1uta.matrix.event.content.RoomMessageContent;
-import javafx.fxml.Initializable;
+import javafx.scene.Node;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.control.Dialog;
 import javafx.scene.control.MenuItem;
+import javafx.scene.layout.AnchorPane;
 
-import java.net.URL;
 import java.util.ResourceBundle;
 
 /**
- * Base class of all messages.
+ * Base class of all messages. The view of the message is built in code once and then reused for the other messages of
+ * the same type, every {@link #parse(RoomMessage, MatrixAccount)} binds the view to the new message.
  *
  * @param <E> message type.
  */
-public abstract class AbstractMessage<E extends RoomMessageContent> implements Initializable {
+public abstract class AbstractMessage<E extends RoomMessageContent> {
 
     private RoomMessage<E> event;
     private ResourceBundle i18n;
-    private ObjectMapper mapper;
+    private Node view;
 
     public void setEvent(RoomMessage<E> event) {
         this.event = event;
@@ -54,6 +53,10 @@ public abstract class AbstractMessage<E extends RoomMessageContent> implements I
         return i18n;
     }
 
+    public Node getView() {
+        return view;
+    }
+
     protected ContextMenu contextMenu() {
         var menu = new ContextMenu();
         fillContextMenu(menu);
@@ -62,11 +65,12 @@ public abstract class AbstractMessage<E extends RoomMessageContent> implements I
 
     protected void fillContextMenu(ContextMenu menu) {
         var showSourceItem = new MenuItem(getI18n().getString("room.message.context.showSource"));
+        // the source is serialized only when it is requested.
         showSourceItem.setOnAction(event -> {
             var sourceDialog = new Dialog<>();
             sourceDialog.setTitle(getI18n().getString("room.message.context.source.title"));
             try {
-                sourceDialog.setContentText(mapper.writeValueAsString(getEvent()));
+                sourceDialog.setContentText(Json.pretty(getEvent()));
             } catch (JsonProcessingException e) {
                 e.printStackTrace();
             }
@@ -76,18 +80,43 @@ public abstract class AbstractMessage<E extends RoomMessageContent> implements I
         doFillContextMenu(menu);
     }
 
-    @Override
-    public void initialize(URL location, ResourceBundle resources) {
+    /**
+     * Build the view of the message.
+     *
+     * @param resources localized messages.
+     * @return the view.
+     */
+    public Node initialize(ResourceBundle resources) {
         this.i18n = resources;
-        this.mapper = new ObjectMapper();
-        this.mapper.setSerializationInclusion(JsonInclude.Include.NON_EMPTY);
-        this.mapper.enable(SerializationFeature.INDENT_OUTPUT);
+        this.view = createView();
         doInit();
+        return view;
     }
 
     protected void doInit() {
     }
 
+    /**
+     * Create the node graph of the message.
+     *
+     * @return the view.
+     */
+    protected abstract Node createView();
+
+    /**
+     * Create the view which stretches the node to the whole message.
+     *
+     * @param node the content of the message.
+     * @return the view.
+     */
+    protected static AnchorPane anchored(Node node) {
+        AnchorPane.setTopAnchor(node, 0D);
+        AnchorPane.setRightAnchor(node, 0D);
+        AnchorPane.setBottomAnchor(node, 0D);
+        AnchorPane.setLeftAnchor(node, 0D);
+        return new AnchorPane(node);
+    }
+
     protected abstract void doFillContextMenu(ContextMenu menu);
 
     /**
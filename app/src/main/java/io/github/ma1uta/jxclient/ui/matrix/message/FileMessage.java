@@ -19,18 +19,25 @@ package io.github.ma1uta.jxclient.ui.matrix.message;
 import io.github.ma1uta.jxclient.matrix.MatrixAccount;
 import io.github.ma1uta.matrix.event.RoomMessage;
 import io.github.ma1uta.matrix.event.message.File;
-import javafx.fxml.FXML;
-import javafx.fxml.Initializable;
+import javafx.scene.Node;
+import javafx.scene.control.Button;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.control.Label;
+import javafx.scene.layout.HBox;
 
 /**
  * Text message.
  */
-public class FileMessage extends AbstractMessage<File> implements Initializable {
+public class FileMessage extends AbstractMessage<File> {
 
-    @FXML
-    private Label body;
+    private final Label body = new Label();
+
+    @Override
+    protected Node createView() {
+        var download = new Button(getI18n().getString("room.message.file.download"));
+        download.setOnAction(event -> downloadAction());
+        return new HBox(body, download);
+    }
 
     @Override
     protected void doFillContextMenu(ContextMenu menu) {
@@ -19,18 +19,27 @@ package io.github.ma1uta.jxclient.ui.matrix.message;
 import io.github.ma1uta.jxclient.matrix.MatrixAccount;
 import io.github.ma1uta.matrix.event.RoomMessage;
 import io.github.ma1uta.matrix.event.message.Image;
-import javafx.fxml.FXML;
-import javafx.fxml.Initializable;
+import javafx.scene.Node;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.image.ImageView;
+import javafx.scene.layout.AnchorPane;
 
 /**
  * Text message.
  */
-public class ImageMessage extends AbstractMessage<Image> implements Initializable {
+public class ImageMessage extends AbstractMessage<Image> {
 
-    @FXML
-    private ImageView image;
+    private static final String IMAGE = "image";
+    private static final double IMAGE_SIZE = 100D;
+
+    private final ImageView image = new ImageView();
+
+    @Override
+    protected Node createView() {
+        image.setFitWidth(IMAGE_SIZE);
+        image.setFitHeight(IMAGE_SIZE);
+        return new AnchorPane(image);
+    }
 
     @Override
     protected void doFillContextMenu(ContextMenu menu) {
@@ -39,9 +48,16 @@ public class ImageMessage extends AbstractMessage<Image> implements Initializabl
     @Override
     public void parse(RoomMessage<Image> event, MatrixAccount account) {
         setEvent(event);
-        account.getDownloader().download(event.getContent().getUrl(), url -> {
+        image.setImage(null);
+        var width = image.getFitWidth();
+        var height = image.getFitHeight();
+        account.getDownloader().thumbnail(event.getContent().getUrl(), width, height, this, IMAGE, url -> {
+            // the view could be reused for the other message while the thumbnail was being downloaded.
+            if (getEvent() != event) {
+                return;
+            }
             try {
-                image.setImage(new javafx.scene.image.Image(url));
+                image.setImage(new javafx.scene.image.Image(url, width, height, true, true));
             } catch (Exception e) {
                 e.printStackTrace();
             }
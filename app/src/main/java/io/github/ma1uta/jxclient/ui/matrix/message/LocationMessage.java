@@ -19,18 +19,21 @@ package io.github.ma1uta.jxclient.ui.matrix.message;
 import io.github.ma1uta.jxclient.matrix.MatrixAccount;
 import io.github.ma1uta.matrix.event.RoomMessage;
 import io.github.ma1uta.matrix.event.message.Location;
-import javafx.fxml.FXML;
-import javafx.fxml.Initializable;
+import javafx.scene.Node;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.control.Label;
 
 /**
  * Text message.
  */
-public class LocationMessage extends AbstractMessage<Location> implements Initializable {
+public class LocationMessage extends AbstractMessage<Location> {
 
-    @FXML
-    private Label body;
+    private final Label body = new Label();
+
+    @Override
+    protected Node createView() {
+        return anchored(body);
+    }
 
     @Override
     protected void doFillContextMenu(ContextMenu menu) {
@@ -25,82 +25,106 @@ import static io.github.ma1uta.matrix.event.Event.MessageType.NOTICE;
 import static io.github.ma1uta.matrix.event.Event.MessageType.TEXT;
 import static io.github.ma1uta.matrix.event.Event.MessageType.VIDEO;
 
-import io.github.ma1uta.jxclient.matrix.MatrixAccount;
-import io.github.ma1uta.matrix.event.RoomMessage;
 import io.github.ma1uta.matrix.event.content.RoomMessageContent;
-import javafx.fxml.FXMLLoader;
 import javafx.scene.Node;
 import javafx.util.Pair;
 
-import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.function.Supplier;
 
 /**
- * Message loader.
+ * Message loader. The message views are built in code without the FXML parsing and the reflection. The released views are
+ * kept in the pool of their message type and are reused for the next messages of the same type. The loader must be used
+ * in the FX thread only.
  */
 public class MessageLoader {
 
+    /**
+     * Default count of the released views kept for every message type.
+     */
+    public static final int DEFAULT_POOL_SIZE = 32;
+
+    private static final Map<String, Supplier<AbstractMessage<?>>> FACTORIES = Map.of(
+        TEXT, TextMessage::new,
+        NOTICE, NoticeMessage::new,
+        IMAGE, ImageMessage::new,
+        EMOTE, EmoteMessage::new,
+        FILE, FileMessage::new,
+        AUDIO, AudioMessage::new,
+        LOCATION, LocationMessage::new,
+        VIDEO, VideoMessage::new
+    );
+
     private final ResourceBundle i18n;
+    private final int poolSize;
+    private final Map<String, Deque<AbstractMessage<?>>> pools = new HashMap<>();
 
     public MessageLoader(ResourceBundle i18n) {
+        this(i18n, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Create a new loader.
+     *
+     * @param i18n     localized messages.
+     * @param poolSize the count of the released views kept for every message type.
+     */
+    public MessageLoader(ResourceBundle i18n, int poolSize) {
         this.i18n = i18n;
+        this.poolSize = poolSize;
     }
 
     /**
-     * Provides a pair of the view controller and view of specified room message.
+     * Check whether the message type has the view.
      *
-     * @param roomMessage Room message.
-     * @param account     The matrix account.
-     * @param <C>         Type of the event content.
-     * @param <M>         Type of the view controller.
-     * @return The pair &lt;view controller;view&gt;
+     * @param msgtype The message type.
+     * @return {@code true} if the message type is supported, else {@code false}.
      */
-    public <C extends RoomMessageContent, M extends AbstractMessage<C>> Pair<M, Node> load(RoomMessage<C> roomMessage,
-                                                                                           MatrixAccount account) {
-        String msgtype = roomMessage.getContent().getMsgtype();
+    public static boolean isSupported(String msgtype) {
+        return msgtype != null && FACTORIES.containsKey(msgtype);
+    }
 
+    /**
+     * Provides the view of the message type, either the released one or the new one.
+     *
+     * @param msgtype The message type.
+     * @param <C>     Type of the event content.
+     * @param <M>     Type of the view controller.
+     * @return The pair &lt;view controller;view&gt; or {@code null} if the message type isn't supported.
+     */
+    @SuppressWarnings("unchecked")
+    public <C extends RoomMessageContent, M extends AbstractMessage<C>> Pair<M, Node> create(String msgtype) {
         if (msgtype == null) {
             return null;
         }
+        var factory = FACTORIES.get(msgtype);
+        if (factory == null) {
+            return null;
+        }
 
-        String viewControllerUrl;
-        switch (msgtype) {
-            case TEXT:
-                viewControllerUrl = "/io/github/ma1uta/jxclient/ui/matrix/message/TextMessage.fxml";
-                break;
-            case NOTICE:
-                viewControllerUrl = "/io/github/ma1uta/jxclient/ui/matrix/message/NoticeMessage.fxml";
-                break;
-            case IMAGE:
-                viewControllerUrl = "/io/github/ma1uta/jxclient/ui/matrix/message/ImageMessage.fxml";
-                break;
-            case EMOTE:
-                viewControllerUrl = "/io/github/ma1uta/jxclient/ui/matrix/message/EmoteMessage.fxml";
-                break;
-            case FILE:
-                viewControllerUrl = "/io/github/ma1uta/jxclient/ui/matrix/message/FileMessage.fxml";
-                break;
-            case AUDIO:
-                viewControllerUrl = "/io/github/ma1uta/jxclient/ui/matrix/message/AudioMessage.fxml";
-                break;
-            case LOCATION:
-                viewControllerUrl = "/io/github/ma1uta/jxclient/ui/matrix/message/LocationMessage.fxml";
-                break;
-            case VIDEO:
-                viewControllerUrl = "/io/github/ma1uta/jxclient/ui/matrix/message/VideoMessage.fxml";
-                break;
-            default:
-                return null;
+        var pool = pools.get(msgtype);
+        var message = pool != null ? pool.poll() : null;
+        if (message == null) {
+            message = factory.get();
+            message.initialize(i18n);
         }
+        return new Pair<>((M) message, message.getView());
+    }
 
-        FXMLLoader loader = new FXMLLoader(getClass().getResource(viewControllerUrl), i18n);
-        try {
-            Node view = loader.load();
-            M viewController = loader.getController();
-            viewController.parse(roomMessage, account);
-            return new Pair<>(viewController, view);
-        } catch (IOException e) {
-            return null;
+    /**
+     * Return the view to the pool of its message type.
+     *
+     * @param msgtype The message type.
+     * @param message The view controller.
+     */
+    public void release(String msgtype, AbstractMessage<?> message) {
+        var pool = pools.computeIfAbsent(msgtype, key -> new ArrayDeque<>(poolSize));
+        if (pool.size() < poolSize) {
+            pool.push(message);
         }
     }
 }
@@ -19,18 +19,22 @@ package io.github.ma1uta.jxclient.ui.matrix.message;
 import io.github.ma1uta.jxclient.matrix.MatrixAccount;
 import io.github.ma1uta.matrix.event.RoomMessage;
 import io.github.ma1uta.matrix.event.message.Text;
-import javafx.fxml.FXML;
-import javafx.fxml.Initializable;
+import javafx.scene.Node;
 import javafx.scene.control.ContextMenu;
 import javafx.scene.control.Label;
 
 /**
  * Text message.
  */
-public class TextMessage extends AbstractMessage<Text> implements Initializable {
+public class TextMessage extends AbstractMessage<Text> {
 
-    @FXML
-    private Label body;
+    private final Label body = new Label();
+
+    @Override
+    protected Node createView() {
+        body.setWrapText(true);
+        return anchored(body);
+    }
 
     @Override
     protected void doFillContextMenu(ContextMenu menu) {
@@ -7,6 +7,7 @@ module jxclient {
     requires controlsfx;
     requires java.prefs;
     requires java.net.http;
+    requires java.management;
 
     requires java.desktop;
 
@@ -26,6 +27,8 @@ module jxclient {
     opens io.github.ma1uta.jxclient to javafx.graphics;
     opens io.github.ma1uta.jxclient.ui to javafx.fxml;
     opens io.github.ma1uta.jxclient.ui.matrix to javafx.fxml;
-    opens io.github.ma1uta.jxclient.ui.matrix.message to javafx.fxml;
+
+    exports io.github.ma1uta.jxclient.matrix to java.management;
+    exports io.github.ma1uta.jxclient.ui to java.management;
 
 }
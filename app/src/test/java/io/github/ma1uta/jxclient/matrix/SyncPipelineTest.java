@@ -0,0 +1,112 @@
+/*
+ * Copyright sablintolya@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.ma1uta.jxclient.matrix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.github.ma1uta.matrix.client.RequestParams;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The rooms of the response which fails in the middle of the stream are never committed to the local store.
+ */
+public class SyncPipelineTest {
+
+    private static final String ROOM_ID = "!room:example.org";
+
+    private static final String RESPONSE = "{\"next_batch\":\"s1\",\"rooms\":{\"join\":{"
+        + "\"" + ROOM_ID + "\":{\"timeline\":{\"limited\":false,\"events\":[{\"type\":\"m.room.message\",\"event_id\":\"$1\","
+        + "\"sender\":\"@user:example.org\",\"origin_server_ts\":1,\"content\":{\"msgtype\":\"m.text\",\"body\":\"hello\"}}]}},"
+        + "\"!other:example.org\":{\"timeline\":{\"limited\":false,\"events\":[{\"type\":\"m.room.message\"";
+
+    private static final String NEXT_RESPONSE = "{\"next_batch\":\"s2\"}";
+
+    private static final long TIMEOUT = 5L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void truncatedResponseIsNotStored() throws Exception {
+        var requestFactory = new PlainRequestFactory("localhost");
+        var syncEngine = new SyncEngine(requestFactory, new RequestParams(), null, false, token -> {
+        });
+        try (LocalStore store = new LocalStore(folder.getRoot().toPath(), requestFactory.getMapper(), 1L << 24)) {
+            var batch = new AtomicReference<LocalStore.Batch>();
+            var pipeline = new SyncPipeline("test", syncEngine,
+                (roomId, joinedRoom) -> batch(store, batch).room(roomId, joinedRoom),
+                syncResponse -> {
+                    try (LocalStore.Batch current = batch(store, batch)) {
+                        current.token(LocalStore.NEXT_BATCH, syncResponse.getNextBatch());
+                        current.commit();
+                    } finally {
+                        batch.set(null);
+                    }
+                },
+                () -> {
+                    var current = batch.getAndSet(null);
+                    if (current != null) {
+                        current.close();
+                    }
+                },
+                SyncPipeline.DEFAULT_DECODE_QUEUE, SyncPipeline.DEFAULT_APPLY_QUEUE);
+            pipeline.start();
+            try {
+                try {
+                    pipeline.submit(stream(RESPONSE), System.nanoTime()).get(TIMEOUT, TimeUnit.SECONDS);
+                    fail("The truncated response should fail.");
+                } catch (ExecutionException expected) {
+                    // the stream is cut off after the first room.
+                }
+                pipeline.submit(stream(NEXT_RESPONSE), System.nanoTime()).get(TIMEOUT, TimeUnit.SECONDS);
+
+                var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+                while (store.getToken(LocalStore.NEXT_BATCH) == null && System.nanoTime() < deadline) {
+                    Thread.sleep(10L);
+                }
+                assertEquals("s2", store.getToken(LocalStore.NEXT_BATCH));
+                assertTrue(store.timeline(ROOM_ID, 10).isEmpty());
+                assertTrue(store.rooms().isEmpty());
+            } finally {
+                pipeline.stop();
+                pipeline.awaitTermination(TIMEOUT, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static LocalStore.Batch batch(LocalStore store, AtomicReference<LocalStore.Batch> batch) {
+        if (batch.get() == null) {
+            batch.set(store.batch());
+        }
+        return batch.get();
+    }
+
+    private static InputStream stream(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+}